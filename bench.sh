@@ -0,0 +1,17 @@
+#!/bin/bash
+# Builds the benchmarks into hydroplane-bench.jar and runs them
+# The harness is self-contained rather than JMH, so only javac and jar are needed
+# Any arguments are passed on, e.g. ./bench.sh bench='.*getHits.*' iterations=10 error=0.1
+# Set BUILD_ONLY=1 to only build the jar
+
+set -e
+rm -rf bench_classes
+mkdir bench_classes
+javac -d bench_classes hydroplane/*.java
+jar cfe hydroplane-bench.jar hydroplane.Benchmarks -C bench_classes .
+rm -rf bench_classes
+
+if [ -z "$BUILD_ONLY" ]
+then
+    java -jar hydroplane-bench.jar "$@"
+fi
@@ -0,0 +1,120 @@
+/*
+ * Checks the banded alignment in DynamicProgrammingAligner against the original implementation
+ * on random pairs of sequences, and reports how many cells per second each of them fills
+ *
+ * Usage: java hydroplane.AlignerCheck [pairs=20000] [length=2000] [seed=1]
+ */
+
+package hydroplane;
+
+import java.util.Random;
+
+public class AlignerCheck {
+	static final char[] BASES = {'A', 'C', 'G', 'T'};
+
+	public static void main(String[] args)
+	{
+		int pairs = 20000;
+		int length = 2000;
+		long seed = 1;
+		for(String s : args)
+		{
+			int idx = s.indexOf('=');
+			if(idx == -1) continue;
+			String argName = s.substring(0, idx).toLowerCase();
+			String val = s.substring(idx+1);
+			if(argName.equals("pairs")) pairs = Integer.parseInt(val);
+			else if(argName.equals("length")) length = Integer.parseInt(val);
+			else if(argName.equals("seed")) seed = Long.parseLong(val);
+		}
+
+		DynamicProgrammingAligner dpa = new DynamicProgrammingAligner();
+		Random rand = new Random(seed);
+
+		// Correctness, mostly on short pairs so that the edges of the band and of the matrix are hit often
+		int mismatches = 0;
+		for(int i = 0; i<pairs; i++)
+		{
+			String query = randomSequence(rand, rand.nextInt(i%2 == 0 ? 200 : length));
+			String candidate = mutate(rand, query, rand.nextDouble() * 0.3);
+			if(rand.nextInt(4) == 0)
+			{
+				candidate = candidate.substring(0, rand.nextInt(candidate.length() + 1));
+			}
+			double expected = dpa.dpReference(query, candidate);
+			double actual = dpa.dp(query, candidate);
+			if(expected != actual)
+			{
+				mismatches++;
+				if(mismatches <= 5)
+				{
+					System.out.println("Mismatch: expected " + expected + " but got " + actual
+							+ " for lengths " + query.length() + " and " + candidate.length());
+				}
+			}
+		}
+		System.out.println("Checked " + pairs + " pairs: " + mismatches + " mismatches");
+
+		// Throughput, on full-length pairs at a typical error rate
+		String[] queries = new String[200];
+		String[] candidates = new String[queries.length];
+		long cells = 0;
+		for(int i = 0; i<queries.length; i++)
+		{
+			queries[i] = randomSequence(rand, length);
+			candidates[i] = mutate(rand, queries[i], 0.1);
+			cells += bandCells(queries[i].length(), candidates[i].length());
+		}
+		for(int round = 0; round<3; round++)
+		{
+			long start = System.nanoTime();
+			double total = 0;
+			for(int i = 0; i<queries.length; i++) total += dpa.dpReference(queries[i], candidates[i]);
+			long mid = System.nanoTime();
+			for(int i = 0; i<queries.length; i++) total -= dpa.dp(queries[i], candidates[i]);
+			long end = System.nanoTime();
+			System.out.printf("Round %d: reference %.1f Mcells/s, banded %.1f Mcells/s (difference %.1f)\n",
+					round + 1, cells * 1e3 / (mid - start), cells * 1e3 / (end - mid), total);
+		}
+	}
+
+	/*
+	 * The number of cells in the band of an n by m alignment
+	 */
+	static long bandCells(int n, int m)
+	{
+		long cells = 0;
+		for(int i = 0; i<=n; i++)
+		{
+			cells += Math.max(0, Math.min(m, i + DynamicProgrammingAligner.BAND) - Math.max(0, i - DynamicProgrammingAligner.BAND) + 1);
+		}
+		return cells;
+	}
+
+	static String randomSequence(Random rand, int length)
+	{
+		char[] res = new char[length];
+		for(int i = 0; i<length; i++) res[i] = BASES[rand.nextInt(4)];
+		return new String(res);
+	}
+
+	/*
+	 * Applies random substitutions, insertions and deletions at the given rate
+	 */
+	static String mutate(Random rand, String s, double rate)
+	{
+		StringBuilder sb = new StringBuilder();
+		for(int i = 0; i<s.length(); i++)
+		{
+			if(rand.nextDouble() >= rate)
+			{
+				sb.append(s.charAt(i));
+				continue;
+			}
+			int type = rand.nextInt(3);
+			if(type == 0) sb.append(BASES[rand.nextInt(4)]);
+			else if(type == 1) sb.append(s.charAt(i)).append(BASES[rand.nextInt(4)]);
+		}
+		return sb.toString();
+	}
+}
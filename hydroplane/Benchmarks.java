@@ -0,0 +1,320 @@
+/*
+ * Microbenchmarks for the hot paths of the sieve, run on synthetic reads from ReadSimulator
+ * Each benchmark runs for a few warmup iterations and then a few measured iterations of fixed length,
+ * and the throughput of each measured iteration is reported along with their mean and spread
+ * Results of every operation are folded into a sink so the JIT cannot remove the work
+ * This follows JMH's warmup and measurement scheme by hand rather than using JMH, since the tree is built
+ * with plain javac and has no build tool to fetch JMH and run its annotation processor
+ *
+ * Usage: java hydroplane.Benchmarks [bench=<regex>] [warmup=3] [iterations=5] [time=1000] [n=400]
+ *            plus any of the ReadSimulator parameters (genome=, mu=, sigma=, minlength=, maxlength=, error=, seed=)
+ * bench.sh builds these into a jar and runs it
+ */
+
+package hydroplane;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Locale;
+
+public class Benchmarks {
+
+	static volatile long sink;
+
+	/*
+	 * A benchmark which is set up once and then timed over many calls to op
+	 */
+	static abstract class Benchmark
+	{
+		String name;
+		Benchmark(String name)
+		{
+			this.name = name;
+		}
+		void setup() throws Exception
+		{
+		}
+		abstract long op() throws Exception;
+	}
+
+	int warmup = 3;
+	int iterations = 5;
+	long iterationNanos = 1000000000L;
+	String pattern = ".*";
+	int numReads = 400;
+
+	ReadSimulator sim;
+	Read[] reads;
+	Read[] queries;
+	String fastq, fasta;
+	ReadIndex index;
+	CommandLineParser clp;
+
+	Benchmarks(String[] args)
+	{
+		for(String s : args)
+		{
+			int idx = s.indexOf('=');
+			if(idx == -1) continue;
+			String argName = s.substring(0, idx).toLowerCase();
+			String val = s.substring(idx+1);
+			if(argName.equals("bench")) pattern = val;
+			else if(argName.equals("warmup")) warmup = Integer.parseInt(val);
+			else if(argName.equals("iterations")) iterations = Integer.parseInt(val);
+			else if(argName.equals("time")) iterationNanos = Long.parseLong(val) * 1000000L;
+			else if(argName.equals("n")) numReads = Integer.parseInt(val);
+		}
+		sim = new ReadSimulator(args);
+	}
+
+	/*
+	 * Simulates the reads, writes them to temporary FASTQ and FASTA files, and indexes the longest of them
+	 */
+	void init() throws IOException
+	{
+		sim.init();
+		reads = sim.reads(numReads);
+		fastq = writeTemp(reads, true);
+		fasta = writeTemp(reads, false);
+
+		clp = new CommandLineParser(new String[] {"fn=" + fastq, "indexsize=0.1", "lf=", "nt=1"});
+		ReadLengthSeparator re = new ReadLengthSeparator(clp.fn, clp.indexSize, clp.sampleSize, new Timer(Timer.Unit.SECOND));
+		queries = re.sample;
+		index = new ReadIndex(re, clp);
+	}
+
+	static String writeTemp(Read[] reads, boolean fastq) throws IOException
+	{
+		File f = File.createTempFile("hydroplane-bench", fastq ? ".fq" : ".fa");
+		f.deleteOnExit();
+		FileOutputStream os = new FileOutputStream(f);
+		ReadSimulator.write(reads, os, fastq);
+		os.close();
+		return f.getPath();
+	}
+
+	ArrayList<Benchmark> benchmarks()
+	{
+		ArrayList<Benchmark> res = new ArrayList<>();
+		final int k = clp.k, w = clp.w, posStrandBits = clp.posStrandBits;
+
+		res.add(new Benchmark("MerMaker.hash64 (1024 keys)") {
+			long key = 1;
+			long op()
+			{
+				long total = 0;
+				for(int i = 0; i<1024; i++)
+				{
+					total += MerMaker.hash64(key++, k);
+				}
+				return total;
+			}
+		});
+
+		res.add(new Benchmark("MerMaker.minimizers (per read)") {
+			int next = 0;
+			long op()
+			{
+				Read r = queries[next++ % queries.length];
+				return MerMaker.minimizers(r.s, k, w, posStrandBits).length;
+			}
+		});
+
+		res.add(new Benchmark("MinimizerEngine.compute (per read)") {
+			int next = 0;
+			long op()
+			{
+				Read r = queries[next++ % queries.length];
+				return MerMaker.engine().compute(r.s, k, w, posStrandBits);
+			}
+		});
+
+		res.add(new Benchmark("ReadIndex.getHits (per read)") {
+			long[][] minimizers;
+			int next = 0;
+			void setup()
+			{
+				minimizers = new long[queries.length][];
+				for(int i = 0; i<queries.length; i++)
+				{
+					minimizers[i] = MerMaker.minimizers(queries[i].s, k, w, posStrandBits);
+				}
+			}
+			long op()
+			{
+				int i = next++ % queries.length;
+				return index.getHits(queries[i], minimizers[i], minimizers[i].length).size;
+			}
+		});
+
+		res.add(new Benchmark("ReadIndex.lis (largest candidate)") {
+			Candidate c;
+			void setup()
+			{
+				c = bestCandidate();
+			}
+			long op()
+			{
+				return index.lis(c.query.s.length(), c.hits, c.hits.start(c.run), c.hits.end(c.run), c.hits.runKey[c.run] % 2 == 0, clp.p).length;
+			}
+		});
+
+		res.add(new Benchmark("DynamicProgrammingAligner.dp (1000 bp)") {
+			byte[][] query, candidate;
+			int next = 0;
+			DynamicProgrammingAligner dpa = new DynamicProgrammingAligner();
+			void setup()
+			{
+				query = new byte[64][];
+				candidate = new byte[query.length][];
+				for(int i = 0; i<query.length; i++)
+				{
+					String s = reads[i % reads.length].s;
+					String window = s.substring(0, Math.min(s.length(), 1000));
+					query[i] = window.getBytes();
+					candidate[i] = sim.mutate(window.toCharArray()).getBytes();
+				}
+			}
+			long op()
+			{
+				int i = next++ % query.length;
+				return (long)(1000 * dpa.dp(query[i], candidate[i]));
+			}
+		});
+
+		res.add(new Benchmark("DynamicProgrammingAligner.dpContains (largest candidate)") {
+			Candidate c;
+			int[] chain;
+			DynamicProgrammingAligner dpa = new DynamicProgrammingAligner();
+			void setup()
+			{
+				c = bestCandidate();
+				chain = index.lis(c.query.s.length(), c.hits, c.hits.start(c.run), c.hits.end(c.run), c.hits.runKey[c.run] % 2 == 0, clp.p);
+			}
+			long op()
+			{
+				return (long)(1000 * dpa.dpContains(index.sequences, c.hits.runKey[c.run] / 2, k, c.query, c.hits, chain, true));
+			}
+		});
+
+		res.add(new Benchmark("ReadReader FASTQ (whole file)") {
+			long op() throws IOException
+			{
+				return parse(fastq);
+			}
+		});
+
+		res.add(new Benchmark("ReadReader FASTA (whole file)") {
+			long op() throws IOException
+			{
+				return parse(fasta);
+			}
+		});
+		return res;
+	}
+
+	static long parse(String fn) throws IOException
+	{
+		ReadReader rr = new ReadReader(fn);
+		long total = 0;
+		while(rr.hasNext())
+		{
+			rr.getNextName();
+			total += rr.readNextSequence();
+		}
+		return total;
+	}
+
+	/*
+	 * A query along with the run of its hits against the candidate it shares the most kmers with
+	 * The hits are in the calling thread's buffer, so they are only valid until the next query
+	 */
+	static class Candidate
+	{
+		Read query;
+		HitBuffer hits;
+		int run;
+	}
+
+	Candidate bestCandidate()
+	{
+		Candidate best = new Candidate();
+		int bestQuery = -1, bestLength = -1;
+		for(int i = 0; i<queries.length; i++)
+		{
+			long[] minimizers = MerMaker.minimizers(queries[i].s, clp.k, clp.w, clp.posStrandBits);
+			HitBuffer hits = index.getHits(queries[i], minimizers, minimizers.length);
+			for(int run = 0; run<hits.numRuns; run++)
+			{
+				if(hits.length(run) > bestLength)
+				{
+					bestLength = hits.length(run);
+					bestQuery = i;
+				}
+			}
+		}
+		best.query = queries[bestQuery];
+		long[] minimizers = MerMaker.minimizers(best.query.s, clp.k, clp.w, clp.posStrandBits);
+		best.hits = index.getHits(best.query, minimizers, minimizers.length);
+		for(int run = 0; run<best.hits.numRuns; run++)
+		{
+			if(best.hits.length(run) == bestLength)
+			{
+				best.run = run;
+			}
+		}
+		return best;
+	}
+
+	/*
+	 * Runs one benchmark and prints its throughput in operations per second
+	 */
+	void run(Benchmark b) throws Exception
+	{
+		b.setup();
+		double[] scores = new double[iterations];
+		for(int it = -warmup; it<iterations; it++)
+		{
+			long ops = 0;
+			long total = 0;
+			long start = System.nanoTime();
+			long elapsed;
+			do
+			{
+				total += b.op();
+				ops++;
+				elapsed = System.nanoTime() - start;
+			}
+			while(elapsed < iterationNanos);
+			sink += total;
+			if(it >= 0)
+			{
+				scores[it] = ops * 1e9 / elapsed;
+			}
+		}
+		double mean = 0;
+		for(double s : scores) mean += s;
+		mean /= iterations;
+		double variance = 0;
+		for(double s : scores) variance += (s - mean) * (s - mean);
+		double error = iterations > 1 ? Math.sqrt(variance / (iterations - 1)) : 0;
+		System.out.println(String.format(Locale.ROOT, "%-58s %5d %14.3f +- %12.3f  ops/s %12.3f us/op",
+				b.name, iterations, mean, error, 1e6 / mean));
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		Benchmarks bench = new Benchmarks(args);
+		bench.init();
+		System.out.println(String.format(Locale.ROOT, "%-58s %5s %14s   %12s", "Benchmark", "Cnt", "Score", "Error"));
+		for(Benchmark b : bench.benchmarks())
+		{
+			if(b.name.matches(bench.pattern))
+			{
+				bench.run(b);
+			}
+		}
+	}
+}
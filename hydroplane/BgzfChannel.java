@@ -0,0 +1,235 @@
+/*
+ * Reads a BGZF file (the blocked gzip format used for sequencing data, where every gzip member
+ * is an independent block of at most 64 KB) as a stream of decompressed bytes
+ * Compressed blocks are read sequentially but inflated in parallel on a small thread pool,
+ * and handed back in file order
+ */
+
+package hydroplane;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+public class BgzfChannel implements ReadableByteChannel {
+	static final int HEADER_SIZE = 18;
+	static final int MAX_BLOCK_SIZE = 1 << 16;
+
+	FileChannel in;
+	ByteBuffer header;
+	boolean inputDone;
+	ExecutorService pool;
+	ArrayDeque<Future<byte[]>> pending;
+	int maxPending;
+
+	// The block currently being handed out and how much of it has been consumed
+	byte[] current;
+	int currentPos;
+
+	BgzfChannel(Path path, int numThreads) throws IOException
+	{
+		in = FileChannel.open(path, StandardOpenOption.READ);
+		header = ByteBuffer.allocate(HEADER_SIZE);
+		inputDone = false;
+		pool = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+			public Thread newThread(Runnable r)
+			{
+				Thread t = new Thread(r);
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		pending = new ArrayDeque<>();
+		maxPending = 4 * numThreads;
+		current = new byte[0];
+		currentPos = 0;
+	}
+
+	/*
+	 * Whether a file starts with a gzip header whose extra field holds a BGZF block size
+	 */
+	static boolean isBgzf(byte[] start, int length)
+	{
+		return length >= HEADER_SIZE && isGzip(start, length) && (start[3] & 4) != 0
+				&& start[12] == 'B' && start[13] == 'C' && start[14] == 2 && start[15] == 0;
+	}
+
+	static boolean isGzip(byte[] start, int length)
+	{
+		return length >= 2 && (start[0] & 0xff) == 0x1f && (start[1] & 0xff) == 0x8b;
+	}
+
+	public int read(ByteBuffer dst) throws IOException
+	{
+		while(currentPos == current.length)
+		{
+			fillPending();
+			if(pending.isEmpty())
+			{
+				return -1;
+			}
+			try
+			{
+				current = pending.poll().get();
+			}
+			catch(InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new IOException(e);
+			}
+			catch(ExecutionException e)
+			{
+				throw new IOException("Failed to decompress BGZF block", e.getCause());
+			}
+			currentPos = 0;
+		}
+		int len = Math.min(dst.remaining(), current.length - currentPos);
+		dst.put(current, currentPos, len);
+		currentPos += len;
+		fillPending();
+		return len;
+	}
+
+	/*
+	 * Reads compressed blocks and submits them for inflation until enough are in flight
+	 */
+	void fillPending() throws IOException
+	{
+		while(!inputDone && pending.size() < maxPending)
+		{
+			byte[] block = nextCompressedBlock();
+			if(block == null)
+			{
+				inputDone = true;
+				break;
+			}
+			pending.add(pool.submit(new InflateTask(block)));
+		}
+	}
+
+	/*
+	 * The next whole compressed block, including its header and trailer, or null at the end of the file
+	 */
+	byte[] nextCompressedBlock() throws IOException
+	{
+		header.clear();
+		if(!readFully(header, true))
+		{
+			return null;
+		}
+		byte[] h = header.array();
+		if(!isBgzf(h, HEADER_SIZE))
+		{
+			throw new IOException("Invalid BGZF block header");
+		}
+		int blockSize = ((h[16] & 0xff) | ((h[17] & 0xff) << 8)) + 1;
+		byte[] block = new byte[blockSize];
+		System.arraycopy(h, 0, block, 0, HEADER_SIZE);
+		ByteBuffer rest = ByteBuffer.wrap(block, HEADER_SIZE, blockSize - HEADER_SIZE);
+		readFully(rest, false);
+		return block;
+	}
+
+	/*
+	 * Fills dst from the file, returning false if the file ended before anything was read
+	 */
+	boolean readFully(ByteBuffer dst, boolean allowEof) throws IOException
+	{
+		boolean any = false;
+		while(dst.hasRemaining())
+		{
+			if(in.read(dst) < 0)
+			{
+				if(allowEof && !any)
+				{
+					return false;
+				}
+				throw new EOFException("Truncated BGZF block");
+			}
+			any = true;
+		}
+		return true;
+	}
+
+	public boolean isOpen()
+	{
+		return in.isOpen();
+	}
+
+	public void close() throws IOException
+	{
+		pool.shutdownNow();
+		in.close();
+	}
+
+	static class InflateTask implements Callable<byte[]>
+	{
+		byte[] block;
+		InflateTask(byte[] block)
+		{
+			this.block = block;
+		}
+		public byte[] call() throws DataFormatException, IOException
+		{
+			int n = block.length;
+			int extraLength = (block[10] & 0xff) | ((block[11] & 0xff) << 8);
+			int dataStart = 12 + extraLength;
+			int dataLength = n - dataStart - 8;
+			int crc = readInt(block, n - 8);
+			int size = readInt(block, n - 4);
+			if(size < 0 || size > MAX_BLOCK_SIZE)
+			{
+				throw new IOException("Invalid BGZF block size: " + size);
+			}
+			byte[] res = new byte[size];
+			Inflater inflater = new Inflater(true);
+			try
+			{
+				inflater.setInput(block, dataStart, dataLength);
+				int done = 0;
+				while(done < size && !inflater.finished())
+				{
+					int got = inflater.inflate(res, done, size - done);
+					if(got == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+					{
+						break;
+					}
+					done += got;
+				}
+				if(done != size)
+				{
+					throw new IOException("BGZF block inflated to " + done + " bytes instead of " + size);
+				}
+			}
+			finally
+			{
+				inflater.end();
+			}
+			CRC32 check = new CRC32();
+			check.update(res, 0, size);
+			if((int)check.getValue() != crc)
+			{
+				throw new IOException("BGZF block failed CRC check");
+			}
+			return res;
+		}
+		static int readInt(byte[] a, int i)
+		{
+			return (a[i] & 0xff) | ((a[i+1] & 0xff) << 8) | ((a[i+2] & 0xff) << 16) | ((a[i+3] & 0xff) << 24);
+		}
+	}
+}
@@ -0,0 +1,212 @@
+/*
+ * Writes a BGZF file, the counterpart of BgzfChannel
+ * Output is cut into blocks of a little under 64 KB which are deflated in parallel on a small thread pool
+ * and written in order, followed by the standard empty block which marks the end of the file
+ * Since every block is a complete gzip member, the output can also be read by anything which reads gzip
+ */
+
+package hydroplane;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+public class BgzfOutputStream extends OutputStream {
+	// The most uncompressed bytes in a block, leaving room for the block to grow if the data does not compress
+	static final int BLOCK_DATA_SIZE = 0xff00;
+
+	static final byte[] EOF_BLOCK = {
+		0x1f, (byte)0x8b, 8, 4, 0, 0, 0, 0, 0, (byte)0xff, 6, 0, 'B', 'C', 2, 0, 0x1b, 0, 3, 0, 0, 0, 0, 0, 0, 0, 0, 0
+	};
+
+	OutputStream out;
+	ExecutorService pool;
+	ArrayDeque<Future<byte[]>> pending;
+	int maxPending;
+	int level;
+
+	// The data of the block being filled
+	byte[] block;
+	int blockSize;
+
+	BgzfOutputStream(OutputStream out, int numThreads)
+	{
+		this(out, numThreads, Deflater.DEFAULT_COMPRESSION);
+	}
+
+	BgzfOutputStream(OutputStream out, int numThreads, int level)
+	{
+		this.out = out;
+		this.level = level;
+		pool = Executors.newFixedThreadPool(Math.max(1, numThreads), new ThreadFactory() {
+			public Thread newThread(Runnable r)
+			{
+				Thread t = new Thread(r);
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		pending = new ArrayDeque<>();
+		maxPending = 4 * Math.max(1, numThreads);
+		block = new byte[BLOCK_DATA_SIZE];
+		blockSize = 0;
+	}
+
+	public void write(int b) throws IOException
+	{
+		if(blockSize == BLOCK_DATA_SIZE)
+		{
+			submitBlock();
+		}
+		block[blockSize++] = (byte)b;
+	}
+
+	public void write(byte[] b, int off, int len) throws IOException
+	{
+		while(len > 0)
+		{
+			if(blockSize == BLOCK_DATA_SIZE)
+			{
+				submitBlock();
+			}
+			int n = Math.min(len, BLOCK_DATA_SIZE - blockSize);
+			System.arraycopy(b, off, block, blockSize, n);
+			blockSize += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	/*
+	 * Hands the current block to the pool, first writing out finished blocks if too many are in flight
+	 */
+	void submitBlock() throws IOException
+	{
+		if(blockSize == 0)
+		{
+			return;
+		}
+		while(pending.size() >= maxPending)
+		{
+			writeNext();
+		}
+		pending.add(pool.submit(new DeflateTask(block, blockSize, level)));
+		block = new byte[BLOCK_DATA_SIZE];
+		blockSize = 0;
+	}
+
+	/*
+	 * Waits for the oldest block in flight and writes it
+	 */
+	void writeNext() throws IOException
+	{
+		try
+		{
+			out.write(pending.poll().get());
+		}
+		catch(InterruptedException e)
+		{
+			throw new IOException(e);
+		}
+		catch(ExecutionException e)
+		{
+			throw new IOException(e.getCause());
+		}
+	}
+
+	/*
+	 * Writes everything so far as complete blocks - this ends the current block early
+	 */
+	public void flush() throws IOException
+	{
+		submitBlock();
+		while(!pending.isEmpty())
+		{
+			writeNext();
+		}
+		out.flush();
+	}
+
+	public void close() throws IOException
+	{
+		try
+		{
+			flush();
+			out.write(EOF_BLOCK);
+			out.close();
+		}
+		finally
+		{
+			pool.shutdownNow();
+		}
+	}
+
+	static class DeflateTask implements Callable<byte[]>
+	{
+		byte[] data;
+		int size;
+		int level;
+		DeflateTask(byte[] data, int size, int level)
+		{
+			this.data = data;
+			this.size = size;
+			this.level = level;
+		}
+		public byte[] call() throws IOException
+		{
+			// Deflating can grow data which does not compress by a few bytes per block, which still fits
+			byte[] compressed = new byte[BgzfChannel.MAX_BLOCK_SIZE];
+			Deflater deflater = new Deflater(level, true);
+			int compressedSize;
+			try
+			{
+				deflater.setInput(data, 0, size);
+				deflater.finish();
+				compressedSize = deflater.deflate(compressed, 0, compressed.length - BgzfChannel.HEADER_SIZE - 8);
+				if(!deflater.finished())
+				{
+					throw new IOException("BGZF block did not fit in " + BgzfChannel.MAX_BLOCK_SIZE + " bytes");
+				}
+			}
+			finally
+			{
+				deflater.end();
+			}
+			CRC32 crc = new CRC32();
+			crc.update(data, 0, size);
+
+			int blockLength = BgzfChannel.HEADER_SIZE + compressedSize + 8;
+			byte[] res = new byte[blockLength];
+			res[0] = 0x1f;
+			res[1] = (byte)0x8b;
+			res[2] = 8;
+			res[3] = 4;
+			res[9] = (byte)0xff;
+			res[10] = 6;
+			res[12] = 'B';
+			res[13] = 'C';
+			res[14] = 2;
+			res[16] = (byte)(blockLength - 1);
+			res[17] = (byte)((blockLength - 1) >>> 8);
+			System.arraycopy(compressed, 0, res, BgzfChannel.HEADER_SIZE, compressedSize);
+			writeInt(res, blockLength - 8, (int)crc.getValue());
+			writeInt(res, blockLength - 4, size);
+			return res;
+		}
+		static void writeInt(byte[] a, int i, int x)
+		{
+			a[i] = (byte)x;
+			a[i+1] = (byte)(x >>> 8);
+			a[i+2] = (byte)(x >>> 16);
+			a[i+3] = (byte)(x >>> 24);
+		}
+	}
+}
@@ -0,0 +1,98 @@
+/*
+ * A blocked Bloom filter over long keys, used to reject kmers which are not in the index
+ * before paying for a lookup in it
+ * Each key maps to one 512-bit block (a single cache line) and sets one bit in each of its 8 words,
+ * so a query touches only one cache line and needs no branches between the words
+ * The bits are read through a LongArray so they can be moved off the heap once every key is added
+ */
+
+package hydroplane;
+
+import java.nio.LongBuffer;
+
+public class BlockedBloomFilter {
+	static final int WORDS_PER_BLOCK = 8;
+
+	// Odd multipliers which pick a different bit of the hash for each word of a block
+	static final long[] SALTS = {
+		0x47b6137b44974d91L, 0x8824ad5ba2b7289dL, 0x705495c72df1424bL, 0x9efc49475c6bfb31L,
+		0x2df1424b9efc4947L, 0x5c6bfb3147b6137bL, 0x44974d918824ad5bL, 0xa2b7289d705495c7L
+	};
+
+	// The words keys are added to, which bits reads through until it is moved off the heap (then null)
+	long[] words;
+	LongArray bits;
+	int numBlocks;
+
+	BlockedBloomFilter(long expectedKeys, int bitsPerKey)
+	{
+		long numBits = Math.max(1, expectedKeys) * bitsPerKey;
+		numBlocks = (int)Math.max(1, (numBits + 511) / 512);
+		words = new long[numBlocks * WORDS_PER_BLOCK];
+		bits = LongArray.wrap(words);
+	}
+
+	void add(long key)
+	{
+		long h = mix(key);
+		int block = block(h);
+		for(int i = 0; i<WORDS_PER_BLOCK; i++)
+		{
+			words[block + i] |= 1L << ((h * SALTS[i]) >>> 58);
+		}
+	}
+	
+	/*
+	 * Moves the bits into direct memory - no more keys can be added after this
+	 */
+	void moveOffHeap()
+	{
+		bits = bits.toDirect();
+		words = null;
+	}
+
+	/*
+	 * False if the key was definitely never added
+	 */
+	boolean mightContain(long key)
+	{
+		long h = mix(key);
+		int block = block(h);
+		
+		// A block never crosses a chunk of the LongArray, since chunks hold a multiple of 8 words
+		LongBuffer chunk = bits.chunks[block >>> LongArray.CHUNK_BITS];
+		int offset = (int)(block & LongArray.CHUNK_MASK);
+		long missing = 0;
+		for(int i = 0; i<WORDS_PER_BLOCK; i++)
+		{
+			missing |= ~chunk.get(offset + i) & (1L << ((h * SALTS[i]) >>> 58));
+		}
+		return missing == 0;
+	}
+
+	/*
+	 * The index of the first word of the block for a hash, from its upper bits
+	 */
+	int block(long h)
+	{
+		return (int)(((h >>> 32) * numBlocks) >>> 32) * WORDS_PER_BLOCK;
+	}
+
+	/*
+	 * The 64-bit finalizer from MurmurHash3, so that keys which are close together land in different blocks
+	 */
+	static long mix(long key)
+	{
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb9fe1a85ec53L;
+		key ^= key >>> 33;
+		return key;
+	}
+
+	long bytes()
+	{
+		return 8L * bits.size();
+	}
+}
@@ -0,0 +1,20 @@
+package hydroplane;
+
+import java.util.Arrays;
+
+public class ByteList {
+	byte[] a;
+	int size;
+	ByteList()
+	{
+		size = 0;
+		a = new byte[1024];
+	}
+	void ensureCapacity(int capacity)
+	{
+		if(a.length < capacity)
+		{
+			a = Arrays.copyOf(a, Math.max(capacity, a.length*2));
+		}
+	}
+}
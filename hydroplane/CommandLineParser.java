@@ -13,12 +13,13 @@ public class CommandLineParser
 	String ofn = localDebug ? "/home/mkirsche/git/ContainedReadRemoval/sim/sievedreads.out"
 			: "/home/mkirsche/git/ContainedReadRemoval/sim/sievedarabareads.out";
 	
+	// outputFormat is the format of the output reads, fasta or fastq, and is the same as the input's if null
+	// The output is compressed as BGZF if ofn ends in .gz or .bgz
+	String outputFormat = null;
+	
 	// indexSize is the proportion of reads stored be in the index
 	double indexSize = 0.02;
 	
-	// readSplitScript is the path to the awk script for splitting indexed vs. non-indexed reads
-	String readSplitScript = "/home/mkirsche/git/LongReadFilter/split_reads.sh";
-	
 	// uncontainedReadFile is the output file where names of uncontained reads are written
 	String uncontainedReadFile = localDebug ? "uncontainedreadnames.txt"
 			: "arabauncontainedreadnames.txt";
@@ -26,6 +27,11 @@ public class CommandLineParser
 	// logFile is the name of the file used for outputting logging information
 	String logfile = localDebug ? "log.txt" : null;
 	
+	// binaryLog is whether the log is written in the compact binary format instead of as tab-separated lines
+	// logSampleRate is the proportion of reads which are logged
+	boolean binaryLog = false;
+	double logSampleRate = 1.0;
+	
 	// Size of kmers
 	int k = 15;
 	
@@ -44,6 +50,9 @@ public class CommandLineParser
 	// nt is the number of threads to use
 	int nt = 4;
 	
+	// scheduleWindow is how many consecutive reads are split into chunks of about the same cost for the threads
+	int scheduleWindow = 1024;
+	
 	// verbose is whether or not to output additional logging info
 	boolean verbose = false;
 	
@@ -56,10 +65,56 @@ public class CommandLineParser
 	// propUncontained is the estimated proportion of short reads we want to label as uncontained
 	double propUncontained = .08;
 	
+	// learnTolerance is how wide, relative to the learned cutoff, its confidence interval may be before the rest of
+	// the sample is skipped (0 to always use the whole sample)
+	double learnTolerance = 0.05;
+	
+	// maxOccurrences is the most times a kmer can occur in the index before it is masked
+	// maskFraction, if positive, is instead the proportion of the most frequent distinct kmers to mask
+	int maxOccurrences = 100;
+	double maskFraction = 0;
+	
+	// filterBits is the number of bits per kmer in the filter checked before index lookups (0 for no filter)
+	int filterBits = 16;
+	
+	// chainLookback is the most hits looked back at when extending a chain of shared kmers (0 for no limit)
+	int chainLookback = 5000;
+	
+	// topCandidates is the most candidate reads, by number of shared kmers, which are chained for each query (0 for all)
+	// checkTopCandidates is whether to also check every read against all candidates and report how often the answer differs
+	int topCandidates = 0;
+	boolean checkTopCandidates = false;
+	
+	// shardMemory is the heap in megabytes which the index of each shard of long reads may use (0 to index them all at once)
+	// When it is set, every read is checked against one shard at a time instead of against a single index
+	int shardMemory = 0;
+	
+	// queryShard and numQueryShards split the query reads between processes, with each one checking
+	// only the reads whose index in the file is queryShard modulo numQueryShards
+	int queryShard = 0;
+	int numQueryShards = 1;
+	
+	// metricsFile is where counters and timers for each stage are written every metricsInterval seconds and at exit
+	// (none if null), as JSON if metricsJson is set and in the Prometheus text format otherwise
+	String metricsFile = null;
+	boolean metricsJson = true;
+	int metricsInterval = 10;
+	
+	// indexFile is where the index is saved after it is built, and loaded from on later runs
+	// with the same input and parameters - if it is null the index is always rebuilt
+	String indexFile = null;
+	
+	// offHeap is whether to keep the index and the indexed sequences in direct memory outside the Java heap
+	boolean offHeap = false;
+	
+	// legacyIndex is whether to use the original array of hash maps instead of the compact index
+	boolean legacyIndex = false;
+	
 	// These parameters are not (currently) customizable
 	int logNumMaps = 16;
 	int posStrandBits = 23;
 	int maxAttempts = 5;
+	int sampleSize = 5000;
 	
 	CommandLineParser(String[] args)
 	{
@@ -77,6 +132,18 @@ public class CommandLineParser
 				{
 					learn = false;
 				}
+				else if(s.equals("-oh") || s.equals("-offheap"))
+				{
+					offHeap = true;
+				}
+				else if(s.equals("-ct") || s.equals("-checktopn"))
+				{
+					checkTopCandidates = true;
+				}
+				else if(s.equals("-li") || s.equals("-legacyindex"))
+				{
+					legacyIndex = true;
+				}
 				continue;
 			}
 			String argName = s.substring(0, idx).toLowerCase();
@@ -89,6 +156,10 @@ public class CommandLineParser
 			{
 				ofn = val;
 			}
+			else if(argName.equals("outformat"))
+			{
+				outputFormat = val;
+			}
 			else if(argName.equals("indexsize"))
 			{
 				indexSize = Double.parseDouble(val);
@@ -114,17 +185,75 @@ public class CommandLineParser
 				setEl = true;
 				el = Integer.parseInt(val);
 			}
+			else if(argName.equals("mo"))
+			{
+				maxOccurrences = Integer.parseInt(val);
+			}
+			else if(argName.equals("f"))
+			{
+				maskFraction = Double.parseDouble(val);
+				if(!(maskFraction >= 0 && maskFraction < 1))
+				{
+					throw new IllegalArgumentException("Invalid mask fraction " + val + " - expected a proportion in [0, 1)");
+				}
+			}
+			else if(argName.equals("fb") || argName.equals("filterbits"))
+			{
+				filterBits = Integer.parseInt(val);
+			}
+			else if(argName.equals("topn"))
+			{
+				topCandidates = Integer.parseInt(val);
+			}
+			else if(argName.equals("lookback"))
+			{
+				chainLookback = Integer.parseInt(val);
+			}
+			else if(argName.equals("shardmem"))
+			{
+				shardMemory = Integer.parseInt(val);
+			}
+			else if(argName.equals("shard"))
+			{
+				String[] parts = val.split("/");
+				queryShard = Integer.parseInt(parts[0]);
+				numQueryShards = Integer.parseInt(parts[1]);
+				if(numQueryShards < 1 || queryShard < 0 || queryShard >= numQueryShards)
+				{
+					throw new IllegalArgumentException("Invalid shard " + val + " - expected i/N with 0 <= i < N");
+				}
+			}
+			else if(argName.equals("metrics"))
+			{
+				metricsFile = val;
+			}
+			else if(argName.equals("metricsformat"))
+			{
+				metricsJson = !val.equalsIgnoreCase("prometheus") && !val.equalsIgnoreCase("prom");
+			}
+			else if(argName.equals("metricsinterval"))
+			{
+				metricsInterval = Integer.parseInt(val);
+			}
+			else if(argName.equals("ifn") || argName.equals("indexfile"))
+			{
+				indexFile = val;
+			}
 			else if(argName.equals("lf"))
 			{
 				logfile = val;
 			}
-			else if(argName.equals("p"))
+			else if(argName.equals("logformat"))
 			{
-				p = Double.parseDouble(val);
+				binaryLog = val.equalsIgnoreCase("binary") || val.equalsIgnoreCase("bin");
 			}
-			else if(argName.equals("rss"))
+			else if(argName.equals("logsample"))
 			{
-				readSplitScript = val;
+				logSampleRate = Double.parseDouble(val);
+			}
+			else if(argName.equals("p"))
+			{
+				p = Double.parseDouble(val);
 			}
 			else if(argName.equals("urf"))
 			{
@@ -138,6 +267,14 @@ public class CommandLineParser
 			{
 				propUncontained = Double.parseDouble(val);
 			}
+			else if(argName.equals("window"))
+			{
+				scheduleWindow = Integer.parseInt(val);
+			}
+			else if(argName.equals("learntol"))
+			{
+				learnTolerance = Double.parseDouble(val);
+			}
 			else if(argName.equalsIgnoreCase("localDebug"))
 			{
 				if(val.equalsIgnoreCase("true") || val.equalsIgnoreCase("t"))
@@ -155,6 +292,13 @@ public class CommandLineParser
 			setEl();
 		}
 	}
+	/*
+	 * Whether this process checks the read at a given index in the file
+	 */
+	boolean inQueryShard(int readIndex)
+	{
+		return readIndex % numQueryShards == queryShard;
+	}
 	void setEl()
 	{
 		el = (int)(.6 * (1+w) / p);
@@ -0,0 +1,298 @@
+/*
+ * An immutable minimizer index stored in compressed sparse row form
+ * The distinct minimizer hashes are kept in one sorted array, and the postings (encoded ReadPositions)
+ * for keys[i] are the entries postings[offsets[i]], ..., postings[offsets[i+1]-1] of one flat array
+ * Minimizers which occur too often are masked: they keep their slot, with no postings,
+ * and are marked in a bitset indexed by slot
+ * The arrays are LongArrays so that an index can be read straight out of a memory-mapped IndexFile
+ *
+ * The index is built in two passes which are both split across threads:
+ *   1. Extract the minimizers of every read and count how often each distinct key occurs
+ *   2. Fill the postings into slots preallocated from those counts
+ */
+
+package hydroplane;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class CompactIndex {
+	// The largest Java array which can be allocated, which bounds the minimizer occurrences built in one index
+	static final long MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+	LongArray keys;
+	LongArray offsets;
+	LongArray postings;
+	LongArray maskBits;
+	long numMasked;
+
+	// The most times a key may occur without being masked, or -1 if the index was loaded from a file
+	int occurrenceCap = -1;
+	
+	CompactIndex(LongArray keys, LongArray offsets, LongArray postings, LongArray maskBits)
+	{
+		this.keys = keys;
+		this.offsets = offsets;
+		this.postings = postings;
+		this.maskBits = maskBits;
+		numMasked = countMasked();
+	}
+
+	/*
+	 * Builds the index from the minimizers of each read, as produced by MerMaker.minimizers
+	 * Postings for each key are stored in the order of the reads they came from
+	 * If maskFraction is positive, the most frequent maskFraction of distinct keys are masked,
+	 * and otherwise keys occurring more than maxOccurrences times are
+	 */
+	CompactIndex(long[][] readMinimizers, int posStrandBits, int maxOccurrences, double maskFraction, int numThreads)
+	{
+		// Sort every key occurrence so the distinct keys and their counts can be read off in one scan
+		long total = 0;
+		for(long[] mins : readMinimizers) total += mins.length;
+		if(total > MAX_ARRAY_SIZE)
+		{
+			throw new IllegalArgumentException("Too many minimizer occurrences to index at once (" + total + ", at most "
+					+ MAX_ARRAY_SIZE + ") - index the long reads in shards with shardmem=");
+		}
+		long[] all = new long[(int)total];
+		int idx = 0;
+		for(long[] mins : readMinimizers)
+		{
+			for(long miniKmer : mins)
+			{
+				all[idx++] = miniKmer >> posStrandBits;
+			}
+		}
+		Arrays.parallelSort(all);
+
+		// Store the distinct keys and count how often each one occurs
+		int numKeys = 0;
+		for(int i = 0; i<all.length; i++)
+		{
+			if(i == 0 || all[i] != all[i-1]) numKeys++;
+		}
+		long[] keyArray = new long[numKeys];
+		int[] counts = new int[numKeys];
+		int slot = -1;
+		for(int i = 0; i<all.length; i++)
+		{
+			if(i == 0 || all[i] != all[i-1]) keyArray[++slot] = all[i];
+			counts[slot]++;
+		}
+		all = null;
+
+		occurrenceCap = maskFraction > 0 ? percentileCap(counts, maskFraction) : maxOccurrences;
+
+		// Mask the keys above the cap and turn the counts of the others into starting offsets
+		long[] maskArray = new long[(numKeys + 63) >>> 6];
+		long[] offsetArray = new long[numKeys+1];
+		for(int i = 0; i<numKeys; i++)
+		{
+			if(counts[i] > occurrenceCap)
+			{
+				maskArray[i >>> 6] |= 1L << (i & 63);
+				offsetArray[i+1] = offsetArray[i];
+			}
+			else
+			{
+				offsetArray[i+1] = offsetArray[i] + counts[i];
+			}
+		}
+		counts = null;
+		long[] postingArray = new long[(int)offsetArray[numKeys]];
+
+		// Fill in postings in read order - each thread owns the keys in its stripe of low bits,
+		// so no locking is needed and the order within each key does not depend on scheduling
+		long[] next = Arrays.copyOf(offsetArray, numKeys);
+		FillThread[] threads = new FillThread[numThreads];
+		for(int i = 0; i<numThreads; i++)
+		{
+			threads[i] = new FillThread(readMinimizers, posStrandBits, keyArray, maskArray, next, postingArray, i, numThreads);
+			threads[i].start();
+		}
+		join(threads);
+		
+		keys = LongArray.wrap(keyArray);
+		offsets = LongArray.wrap(offsetArray);
+		postings = LongArray.wrap(postingArray);
+		maskBits = LongArray.wrap(maskArray);
+		numMasked = countMasked();
+	}
+
+	/*
+	 * The occurrence count above which keys are masked so that about the most frequent fraction of
+	 * distinct keys is masked, in the same way as minimap2's -f option
+	 */
+	static int percentileCap(int[] counts, double fraction)
+	{
+		if((long)(counts.length * fraction) == 0)
+		{
+			return Integer.MAX_VALUE;
+		}
+		int[] sorted = Arrays.copyOf(counts, counts.length);
+		Arrays.sort(sorted);
+		// The parser only allows fractions in [0, 1), but keep the rank inside the array whatever the caller passes
+		int rank = (int)Math.max(0, Math.min(counts.length - 1, (1 - fraction) * counts.length));
+		return sorted[rank] + 1;
+	}
+
+	long countMasked()
+	{
+		long res = 0;
+		for(long i = 0; i<maskBits.size(); i++)
+		{
+			res += Long.bitCount(maskBits.get(i));
+		}
+		return res;
+	}
+
+	/*
+	 * Moves the arrays into direct memory, so the garbage collector does not have to deal with them
+	 * An index mapped from a file is already outside the heap and is left as it is
+	 */
+	void moveOffHeap()
+	{
+		if(!keys.isDirect()) keys = keys.toDirect();
+		if(!offsets.isDirect()) offsets = offsets.toDirect();
+		if(!postings.isDirect()) postings = postings.toDirect();
+		if(!maskBits.isDirect()) maskBits = maskBits.toDirect();
+	}
+
+	/*
+	 * Computes the minimizers of every read, splitting the reads among numThreads threads
+	 */
+	static long[][] minimizers(Read[] reads, int k, int w, int posStrandBits, int numThreads, boolean verbose)
+	{
+		long[][] res = new long[reads.length][];
+		AtomicInteger nextRead = new AtomicInteger(0);
+		MinimizerThread[] threads = new MinimizerThread[numThreads];
+		for(int i = 0; i<numThreads; i++)
+		{
+			threads[i] = new MinimizerThread(reads, res, k, w, posStrandBits, nextRead, verbose);
+			threads[i].start();
+		}
+		join(threads);
+		return res;
+	}
+
+	static void join(Thread[] threads)
+	{
+		for(Thread t : threads)
+		{
+			try
+			{
+				t.join();
+			}
+			catch(InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	/*
+	 * The slot of a key in the index, or a negative number if it is absent
+	 */
+	long find(long key)
+	{
+		return keys.binarySearch(key);
+	}
+
+	boolean masked(long slot)
+	{
+		return (maskBits.get(slot >>> 6) & (1L << (slot & 63))) != 0;
+	}
+
+	long start(long slot)
+	{
+		return offsets.get(slot);
+	}
+
+	long end(long slot)
+	{
+		return offsets.get(slot+1);
+	}
+
+	long posting(long i)
+	{
+		return postings.get(i);
+	}
+
+	/*
+	 * The number of keys which are not masked
+	 */
+	long size()
+	{
+		return keys.size() - numMasked;
+	}
+
+	static class MinimizerThread extends Thread
+	{
+		Read[] reads;
+		long[][] res;
+		int k, w, posStrandBits;
+		AtomicInteger nextRead;
+		boolean verbose;
+		MinimizerThread(Read[] reads, long[][] res, int k, int w, int posStrandBits, AtomicInteger nextRead, boolean verbose)
+		{
+			this.reads = reads;
+			this.res = res;
+			this.k = k;
+			this.w = w;
+			this.posStrandBits = posStrandBits;
+			this.nextRead = nextRead;
+			this.verbose = verbose;
+		}
+		public void run()
+		{
+			int i;
+			while((i = nextRead.getAndIncrement()) < reads.length)
+			{
+				res[i] = MerMaker.minimizers(reads[i].s, k, w, posStrandBits);
+				if(verbose && i > 0 && i%1000 == 0)
+				{
+					System.err.println("Added " + i + " reads");
+				}
+			}
+		}
+	}
+
+	static class FillThread extends Thread
+	{
+		long[][] readMinimizers;
+		int posStrandBits;
+		long[] keys;
+		long[] maskBits;
+		long[] next;
+		long[] postings;
+		int stripe, numStripes;
+		FillThread(long[][] readMinimizers, int posStrandBits, long[] keys, long[] maskBits, long[] next, long[] postings, int stripe, int numStripes)
+		{
+			this.readMinimizers = readMinimizers;
+			this.posStrandBits = posStrandBits;
+			this.keys = keys;
+			this.maskBits = maskBits;
+			this.next = next;
+			this.postings = postings;
+			this.stripe = stripe;
+			this.numStripes = numStripes;
+		}
+		public void run()
+		{
+			for(int readIndex = 0; readIndex<readMinimizers.length; readIndex++)
+			{
+				for(long miniKmer : readMinimizers[readIndex])
+				{
+					long key = miniKmer >> posStrandBits;
+					if((int)((key & 0xffff) % numStripes) != stripe) continue;
+					int slot = Arrays.binarySearch(keys, key);
+					if((maskBits[slot >>> 6] & (1L << (slot & 63))) != 0) continue;
+					int strand = (int)(miniKmer&1);
+					int pos = ((int) (miniKmer & ((1L << posStrandBits) - 1))) >> 1;
+					postings[(int)next[slot]++] = ReadPosition.encode(readIndex, pos, strand);
+				}
+			}
+		}
+	}
+}
@@ -4,136 +4,311 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.atomic.AtomicInteger;
 
+/*
+ * Checks every read for containment using a pool of worker threads
+ * The main thread parses reads into windows of consecutive reads, and splits each window into chunks by
+ * estimated cost which are handed to the workers through a bounded queue, most expensive first
+ * A read's cost is estimated from its expected number of minimizers, so a few very long reads do not end up
+ * queued behind many short ones or bunched together in one chunk, where they would leave the other threads idle
+ * When the last chunk of a window is done, the names of its uncontained reads are passed through another bounded
+ * queue to a writer thread, and the reads themselves to a ReadWriter which writes windows out in file order
+ * Both queues block when full or empty, and the end of each stream is marked by a sentinel
+ * Indexed reads are checked in their place in the file along with the short reads, so there is no pause
+ * between the two, and the output is in file order
+ * In the sharded mode there is one processor per shard of the index, each checking every read not yet
+ * found to be contained, and the names are written only once all of them are done
+ */
 public class ConcurrentReadProcessor {
+
+	// How many chunks per thread each window is split into
+	static final int CHUNKS_PER_THREAD = 4;
+
+	// Sentinels marking the end of the read and name streams
+	static final Chunk END_OF_READS = new Chunk(null, new int[0]);
+	static final String END_OF_NAMES = new String("");
+
+	/*
+	 * Consecutive reads which are scheduled together, and which of them are kept
+	 */
+	static class Window
+	{
+		int seq;
+		Read[] reads;
+		boolean[] kept;
+		
+		// How many of the reads are still being checked
+		AtomicInteger remaining;
+		Window(int seq, Read[] reads)
+		{
+			this.seq = seq;
+			this.reads = reads;
+			kept = new boolean[reads.length];
+			remaining = new AtomicInteger(reads.length);
+		}
+	}
 	
-	ConcurrentLinkedQueue<Read> toProcess;
-	ConcurrentLinkedQueue<String> toWriteName;
+	/*
+	 * The positions in a window of reads handed to a worker together
+	 */
+	static class Chunk
+	{
+		Window window;
+		int[] positions;
+		Chunk(Window window, int[] positions)
+		{
+			this.window = window;
+			this.positions = positions;
+		}
+	}
+
+	BlockingQueue<Chunk> toProcess;
+	BlockingQueue<String> toWriteName;
 	ReadLengthSeparator re;
 	ReadIndex index;
 	CommandLineParser clp;
 	AtomicInteger readsProcessed;
 	AtomicInteger countContained;
 	Timer timer;
-	
+
 	MyThread[] threads;
 	WriterThread wt;
-	boolean[] contained;
-	boolean[] smallRead;
 	
+	// Where the reads which are kept are written, if they are written as they are checked (otherwise null)
+	ReadWriter output;
+	long totalReads, totalBases;
+	
+	// The window being filled, and how many windows have been scheduled
+	Read[] pending;
+	int pendingSize;
+	int numWindows;
+	
+	boolean[] contained;
+
 	Logger logger;
+
+	ConcurrentReadProcessor(ReadLengthSeparator re, ReadIndex index, CommandLineParser clp, int numThreads, Timer timer) throws InterruptedException, IOException
+	{
+		this(re, index, clp, numThreads, timer, new boolean[re.n], clp.uncontainedReadFile);
+		
+		// With several query shards, the reads are only written once the shards are merged
+		if(clp.numQueryShards == 1)
+		{
+			output = new ReadWriter(clp.ofn, ReadWriter.fastqOutput(clp), numThreads, clp.scheduleWindow);
+		}
+		if(clp.logfile != null && clp.logfile.length() > 0)
+		{
+			logger = new Logger(clp.logfile, clp.binaryLog, clp.logSampleRate);
+		}
+	}
 	
-	ConcurrentReadProcessor(ReadLengthSeparator re, ReadIndex index, CommandLineParser clp, int numThreads, Timer timer) throws InterruptedException, FileNotFoundException
+	/*
+	 * A processor which marks reads in an existing contained array, and only writes the names
+	 * of uncontained reads if namesFile is not null
+	 */
+	ConcurrentReadProcessor(ReadLengthSeparator re, ReadIndex index, CommandLineParser clp, int numThreads, Timer timer,
+			boolean[] contained, String namesFile) throws InterruptedException, IOException
 	{
 		this.timer = timer;
 		this.re = re;
 		this.index = index;
 		this.clp = clp;
-		if(clp.logfile != null && clp.logfile.length() > 0)
-		{
-			logger = new Logger(clp.logfile);
-		}
-		toProcess = new ConcurrentLinkedQueue<Read>();
-		toWriteName = new ConcurrentLinkedQueue<String>();
+		this.contained = contained;
+		toProcess = new ArrayBlockingQueue<Chunk>(2 * CHUNKS_PER_THREAD * numThreads);
+		pending = new Read[Math.max(1, clp.scheduleWindow)];
+		pendingSize = 0;
+		numWindows = 0;
+		toWriteName = new ArrayBlockingQueue<String>(1 << 14);
 		threads = new MyThread[numThreads];
 		readsProcessed = new AtomicInteger(0);
 		countContained = new AtomicInteger(0);
-		contained = new boolean[re.n];
-		smallRead = new boolean[re.n];
 		for(int i = 0; i<numThreads; i++)
 		{
 			threads[i] = new MyThread();
 			threads[i].start();
 		}
-		wt = new WriterThread(clp.uncontainedReadFile);
-		wt.start();
+		if(namesFile != null)
+		{
+			wt = new WriterThread(namesFile);
+			wt.start();
+		}
 		System.err.println("All threads launched " + timer.time());
 	}
-	
+
+	/*
+	 * Checks every read in file order which is not already marked as contained, indexed reads included
+	 * Each read's index in the file was assigned by the ReadLengthSeparator as it was parsed
+	 */
 	void run() throws InterruptedException, IOException
 	{
-		while(re.rr.hasNext())
+		Read cur;
+		while((cur = re.getNextRead()) != null)
 		{
-			while(toProcess.size() > 100)
-			{
-				Thread.sleep(1000);
-			}
-			Read cur = re.nextShortRead();
-			if(cur == null)
+			if(contained[cur.i] || !clp.inQueryShard(cur.i))
 			{
-				break;
+				continue;
 			}
-			toProcess.add(cur);
+			submit(cur);
+		}
+		flushWindow();
+		finish();
+	}
+
+	/*
+	 * Checks every read in the file again, for when the file has already been read through once
+	 */
+	void runAll() throws InterruptedException, IOException
+	{
+		re.rr = new ReadReader(re.fn);
+		run();
+	}
+
+	/*
+	 * Adds a read to the window being filled, scheduling the window once it is full
+	 */
+	void submit(Read r) throws InterruptedException
+	{
+		totalReads++;
+		totalBases += r.s.length();
+		pending[pendingSize++] = r;
+		if(pendingSize == pending.length)
+		{
+			flushWindow();
+		}
+	}
+	
+	/*
+	 * Splits the window being filled into chunks by estimated cost and queues them,
+	 * starting with the chunks of the most expensive reads
+	 */
+	void flushWindow() throws InterruptedException
+	{
+		if(pendingSize == 0)
+		{
+			return;
 		}
-//		for(String s : index.longReadNames)
-//		{
-//			toWriteName.add(s);
-//		}
-		while(true)
+		Window window = new Window(numWindows++, Arrays.copyOf(pending, pendingSize));
+		pendingSize = 0;
+		int n = window.reads.length;
+		final long[] costs = new long[n];
+		long totalCost = 0;
+		Integer[] order = new Integer[n];
+		for(int i = 0; i<n; i++)
 		{
-			if(readsProcessed.get() == re.n - index.n)
+			costs[i] = cost(window.reads[i], clp.w);
+			totalCost += costs[i];
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+
+			public int compare(Integer a, Integer b) {
+				return Long.compare(costs[b], costs[a]);
+			}});
+		
+		// Each chunk takes a fixed share of the cost which is left, so chunks get smaller towards the end
+		// of the window and the last ones to be picked up can be spread evenly over the threads
+		long remainingCost = totalCost;
+		int[] chunk = new int[n];
+		int chunkSize = 0;
+		long chunkCost = 0;
+		for(int i = 0; i<n; i++)
+		{
+			chunk[chunkSize++] = order[i];
+			chunkCost += costs[order[i]];
+			if(chunkCost >= Math.max(1, remainingCost / (CHUNKS_PER_THREAD * threads.length)) || i == n-1)
 			{
-				// All small reads done - start processing indexed reads
-				int idx = 0;
-				for(int i = 0; i<index.data.length; i++)
-				{
-					while(toProcess.size() > 100)
-					{
-						Thread.sleep(1000);
-					}
-					while(smallRead[idx]) idx++;
-					index.data[i].i = idx;
-					idx++;
-					toProcess.add(index.data[i]);
-				}
+				toProcess.put(new Chunk(window, Arrays.copyOf(chunk, chunkSize)));
+				remainingCost -= chunkCost;
+				chunkSize = 0;
+				chunkCost = 0;
 			}
-			else if(readsProcessed.get() == re.n)
+		}
+	}
+	
+	/*
+	 * The estimated cost of checking a read, which is its expected number of minimizers
+	 * since the number of kmer matches to chain grows with it
+	 */
+	static long cost(Read r, int w)
+	{
+		return 2L * r.s.length() / (w + 1) + 1;
+	}
+	
+	/*
+	 * Hands on the names and sequences of the reads kept from a window once all of its reads are checked
+	 */
+	void finishWindow(Window window) throws InterruptedException
+	{
+		int numKept = 0;
+		for(boolean k : window.kept) if(k) numKept++;
+		Read[] kept = new Read[numKept];
+		numKept = 0;
+		for(int i = 0; i<window.reads.length; i++)
+		{
+			if(window.kept[i])
 			{
-				// All reads done - tell threads to stop looking for reads to check
-				for(int i = 0; i<threads.length; i++)
+				kept[numKept++] = window.reads[i];
+				if(wt != null)
 				{
-					threads[i].done = true;
+					toWriteName.put(window.reads[i].n);
 				}
-				break;
-			}
-			else
-			{
-				Thread.sleep(1000);
 			}
 		}
+		if(output != null)
+		{
+			output.put(window.seq, kept);
+		}
+	}
+
+	/*
+	 * Waits for the queued reads to be processed and their names and sequences written
+	 */
+	void finish() throws InterruptedException, IOException
+	{
+		// All reads queued - tell threads to stop once the queue is drained
+		for(int i = 0; i<threads.length; i++)
+		{
+			toProcess.put(END_OF_READS);
+		}
 		for(int i = 0; i<threads.length; i++) threads[i].join();
-		
+
 		// Wait for writing thread to finish
-		while(!toWriteName.isEmpty())
+		if(wt != null)
+		{
+			toWriteName.put(END_OF_NAMES);
+			wt.join();
+		}
+		System.err.println("All threads finished " + timer.time());
+		if(output != null)
 		{
-			Thread.sleep(1000);
+			output.close(numWindows);
+			output.printSummary(totalReads, totalBases);
 		}
-		wt.done = true;
-		wt.join();
-		System.err.println("All threads finished - outputting uncontained reads");
 	}
 
 	class MyThread extends Thread
 	{
-		boolean done;
-		public MyThread()
-		{
-			done = false;
-		}
-		public void run() 
+		public void run()
 		{
-			 try 
+			 try
 			 {
-				 Read cur = null;
-				 while(!done)
+				 while(true)
 				 {
-					 cur = toProcess.poll();
-					 if(cur != null)
+					 Chunk chunk = toProcess.take();
+					 if(chunk == END_OF_READS)
 					 {
-						 smallRead[cur.i] = true;
-						 boolean c = index.contains(cur, logger);
+						 break;
+					 }
+					 Window window = chunk.window;
+					 for(int pos : chunk.positions)
+					 {
+						 Read cur = window.reads[pos];
+						 boolean c = index.contains(cur, logger != null && logger.sampled(cur) ? logger : null);
 						 int cc = countContained.get();
 						 if(c)
 						 {
@@ -143,7 +318,7 @@ public class ConcurrentReadProcessor {
 						 }
 						 else
 						 {
-							 toWriteName.add(cur.n);
+							 window.kept[pos] = true;
 						 }
 						 int rp = readsProcessed.incrementAndGet();
 						 if(rp%5000 == 0)
@@ -151,46 +326,44 @@ public class ConcurrentReadProcessor {
 							 System.err.println("So far " + cc + " contained out of " + rp + " " + timer.time());
 						 }
 					 }
+					 if(window.remaining.addAndGet(-chunk.positions.length) == 0)
+					 {
+						 finishWindow(window);
+					 }
 				 }
 			 }
-			 catch(Exception e) 
+			 catch(Exception e)
 			 {
 				 System.err.println("Error: " + e.getMessage());
 				 e.printStackTrace();
 			 }
 		}
 	}
-	
+
 	class WriterThread extends Thread
 	{
-		boolean done;
 		PrintWriter out;
 		public WriterThread(String fn) throws FileNotFoundException
 		{
 			out = new PrintWriter(new File(fn));
-			done = false;
 		}
-		public void run() 
+		public void run()
 		{
-			try 
+			try
 			{
-				String cur = null;
-				while(!done)
+				while(true)
 				{
-					cur = toWriteName.poll();
-					if(cur != null)
-					{
-						String name = cur.split(" ")[0];
-						out.println(name);
-					}
-					else
+					String cur = toWriteName.take();
+					if(cur == END_OF_NAMES)
 					{
-						Thread.sleep(1000);
+						break;
 					}
+					String name = cur.split(" ")[0];
+					out.println(name);
 				}
 				out.close();
 			}
-			catch(Exception e) 
+			catch(Exception e)
 			{
 				System.err.println("Error: " + e.getMessage());
 				e.printStackTrace();
@@ -4,59 +4,174 @@
  */
 package hydroplane;
 
-import java.util.ArrayList;
-
-import hydroplane.ReadIndex.Hit;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
 public class DynamicProgrammingAligner {
-	double dpContains(Read indexedRead, int k, Read r, ArrayList<Hit> sharedKmers, int[] matchChain, boolean checkMiddle)
+	// How far the alignment may stray from the main diagonal
+	static final int BAND = 50;
+	static final int WIDTH = 2 * BAND + 1;
+	
+	/*
+	 * Aligns the parts of the query outside of its chain of kmer matches (and the middle, if requested)
+	 * to the corresponding windows of the indexed read, which are read straight out of the packed store
+	 */
+	double dpContains(PackedSequenceStore sequences, int indexedRead, int k, Read r, HitBuffer hits, int[] matchChain, boolean checkMiddle)
 	{
-		int rs = sharedKmers.get(0).rp.rs;
+		int rs = hits.readKey(matchChain[0]);
 		int strand = rs % 2;
-		Hit leftmost = null, rightmost = null;
+		int leftmost = -1, rightmost = -1;
 		for(int idx : matchChain)
 		{
-			Hit h = sharedKmers.get(idx);
-			if(leftmost == null || h.myIndex < leftmost.myIndex) leftmost = h;
-			if(rightmost == null || h.myIndex > rightmost.myIndex) rightmost = h;
+			if(leftmost == -1 || hits.myPos(idx) < hits.myPos(leftmost)) leftmost = idx;
+			if(rightmost == -1 || hits.myPos(idx) > hits.myPos(rightmost)) rightmost = idx;
 		}
-		int theirMin = Math.min(leftmost.rp.p, rightmost.rp.p);
-		int theirMax = leftmost.rp.p + rightmost.rp.p - theirMin;
+		int leftMine = hits.myPos(leftmost), rightMine = hits.myPos(rightmost);
+		int leftTheirs = hits.theirPos[leftmost], rightTheirs = hits.theirPos[rightmost];
+		int theirMin = Math.min(leftTheirs, rightTheirs);
+		int theirMax = leftTheirs + rightTheirs - theirMin;
+		
+		int subStart = Math.max(0, theirMin - 2 * leftMine);
+		int subEnd = Math.min(sequences.length(indexedRead)-1, theirMax + 2 * (r.s.length() - rightMine));
 		
-		int subStart = Math.max(0, theirMin - 2 * leftmost.myIndex);
-		int subEnd = Math.min(indexedRead.s.length()-1, theirMax + 2 * (r.s.length() - rightmost.myIndex));
+		byte[] query = r.s.getBytes(StandardCharsets.ISO_8859_1);
 		
-		String leftquery = r.s.substring(0, leftmost.myIndex);
-		String rightquery = r.s.substring(rightmost.myIndex + k);
+		byte[] leftquery = window(query, 0, leftMine, true);
+		byte[] rightquery = window(query, rightMine + k, query.length, false);
 		
-		String leftCand = indexedRead.s.substring(subStart, theirMin);
-		String rightCand = indexedRead.s.substring(theirMax + k, subEnd);
+		byte[] leftCand = sequences.window(indexedRead, subStart, theirMin, true);
+		byte[] rightCand = sequences.window(indexedRead, theirMax + k, subEnd, false);
 		
 		double res = 1.0;
 		
 		if(strand == 0)
 		{
-			res = Math.min(dp(revComp(leftquery), revComp(leftCand)), dp(rightquery, rightCand));
+			res = Math.min(dp(leftquery, leftCand), dp(rightquery, rightCand));
 		}
 		else
 		{
-			res = Math.min(dp(rightquery, revComp(leftCand)), dp(revComp(leftquery), rightCand));
+			res = Math.min(dp(rightquery, leftCand), dp(leftquery, rightCand));
 		}
 		
 		if(checkMiddle)
 		{
-			String middlequery = r.s.substring(leftmost.myIndex, rightmost.myIndex);
-			String middleCand = indexedRead.s.substring(theirMin, theirMax);
-			if(strand != 0)
-			{
-				middleCand = revComp(middleCand);
-			}
+			byte[] middlequery = window(query, leftMine, rightMine, false);
+			byte[] middleCand = sequences.window(indexedRead, theirMin, theirMax, strand != 0);
 			res = Math.min(res, dp(middlequery, middleCand));
 		}
 		
 		return res;
 	}
+	
+	/*
+	 * Part of a sequence, reverse complemented if requested
+	 */
+	static byte[] window(byte[] s, int from, int to, boolean reverseComplement)
+	{
+		byte[] res = Arrays.copyOfRange(s, from, to);
+		if(reverseComplement)
+		{
+			reverseComplement(res);
+		}
+		return res;
+	}
+	
 	double dp(String query, String candidate)
+	{
+		return dp(query.getBytes(StandardCharsets.ISO_8859_1), candidate.getBytes(StandardCharsets.ISO_8859_1));
+	}
+	
+	/*
+	 * The best score of aligning all of query to a prefix of candidate within the band, divided by the query length
+	 * Matches score 1, mismatches and gaps in the query -1, and gaps in the candidate -5
+	 * 
+	 * Only the band of each row is stored, indexed by d = j - i + BAND, so a row is a short array
+	 * which is filled in one pass without any branches
+	 * The result is exactly that of dpReference, including what it reads just outside the band:
+	 *   - Above the band, the cell from the previous row has never been written, so it is 0
+	 *   - Left of the band, the cell is the one left over from two rows earlier
+	 * 
+	 * This is a scalar DP rather than a bit-parallel one because bit-vector kernels (Myers, and BitPAl for
+	 * general scores) rely on neighbouring cells differing by a small fixed set of values under a single gap
+	 * cost, and here the two gap costs differ (-1 and -5) and the cells read outside the band break that,
+	 * so such a kernel could not return exactly the same scores as dpReference
+	 */
+	double dp(byte[] query, byte[] candidate)
+	{
+		int n = query.length;
+		int m = candidate.length;
+		if(n == 0)
+		{
+			return 1.0;
+		}
+		
+		long startTime = System.nanoTime();
+		long cells = 0;
+		
+		// The last cell of each row is never written and stands in for the cell above the band
+		int[] twoBack = new int[WIDTH + 1];
+		int[] prev = new int[WIDTH + 1];
+		int[] cur = new int[WIDTH + 1];
+		int maxScore = -n;
+		for(int i = 0; i<=n; i++)
+		{
+			int lo = Math.max(0, BAND - i);
+			int hi = Math.min(m, i + BAND) - i + BAND;
+			cells += Math.max(0, hi - lo + 1);
+			if(i == 0)
+			{
+				for(int d = lo; d<=hi; d++) cur[d] = 0;
+			}
+			else if(lo <= hi)
+			{
+				int d = lo;
+				
+				// The cell left of the band, which is only read when it is not the first column
+				int left = i > BAND ? twoBack[1] : Integer.MIN_VALUE / 2;
+				
+				// The first column has no diagonal or horizontal predecessor
+				if(i <= BAND)
+				{
+					left = cur[d] = Math.max(-i, prev[d+1] - 5);
+					d++;
+				}
+				
+				// The match score is computed without a branch: x | -x is negative exactly when x != 0
+				byte q = query[i-1];
+				int offset = i - BAND - 1;
+				for(; d<=hi; d++)
+				{
+					int x = q ^ candidate[d + offset];
+					int score = (((x | -x) >> 31) << 1) + 1;
+					int v = Math.max(Math.max(-i, prev[d+1] - 5), prev[d] + score);
+					left = cur[d] = Math.max(v, left - 1);
+				}
+			}
+			if(i == n)
+			{
+				for(int d = lo; d<=hi; d++)
+				{
+					maxScore = Math.max(maxScore, cur[d]);
+				}
+			}
+			int[] tmp = twoBack;
+			twoBack = prev;
+			prev = cur;
+			cur = tmp;
+		}
+		
+		double prop = maxScore * 1.0 / n;
+		
+		Metrics.dpCalls.increment();
+		Metrics.dpCells.add(cells);
+		Metrics.dpNanos.add(System.nanoTime() - startTime);
+		return prop;
+	}
+	
+	/*
+	 * The original full-width version of dp, kept to check the banded version against
+	 */
+	double dpReference(String query, String candidate)
 	{
 		int n = query.length();
 		int m = candidate.length();
@@ -88,17 +203,24 @@ public class DynamicProgrammingAligner {
 		
 		return prop;
 	}
-	String revComp(String s)
+	
+	/*
+	 * Reverse complements a sequence in place, mapping anything other than A, C or G to A
+	 */
+	static void reverseComplement(byte[] s)
 	{
-		char[] res = new char[s.length()];
-		for(int i = 0; i<s.length(); i++)
+		for(int i = 0, j = s.length - 1; i <= j; i++, j--)
 		{
-			char c = s.charAt(s.length()-1-i);
-			if(c == 'A') res[i] = 'T';
-			else if(c == 'C') res[i] = 'G';
-			else if(c == 'G') res[i] = 'C';
-			else res[i] = 'A';
+			byte a = complement(s[i]);
+			s[i] = complement(s[j]);
+			s[j] = a;
 		}
-		return new String(res);
+	}
+	static byte complement(byte c)
+	{
+		if(c == 'A') return 'T';
+		else if(c == 'C') return 'G';
+		else if(c == 'G') return 'C';
+		else return 'A';
 	}
 }
@@ -0,0 +1,261 @@
+/*
+ * The kmer matches between a query read and the indexed reads, kept in flat primitive arrays
+ * which are reused from one query to the next, so finding hits does not allocate anything per hit
+ *
+ * Each hit is stored as a long holding (readKey << 32 | myPos), where readKey is the index of the
+ * indexed read times two plus whether the match is on the opposite strand, along with the position
+ * of the match in the indexed read in a parallel int array
+ * Once all hits are added, they are radix-sorted and split into runs with one run per candidate read
+ */
+
+package hydroplane;
+
+import java.util.Arrays;
+
+public class HitBuffer {
+	static final int RADIX_BITS = 11;
+	static final int RADIX_MASK = (1 << RADIX_BITS) - 1;
+
+	// Below this many hits an insertion sort is faster than a radix sort
+	static final int INSERTION_SORT_SIZE = 64;
+
+	long[] keys;
+	int[] theirPos;
+	int size;
+
+	// Run r is the hits start[r], ..., start[r+1]-1, all against the candidate runKey[r]
+	int[] runStart;
+	int[] runKey;
+	int numRuns;
+
+	long[] tmpKeys;
+	int[] tmpTheirPos;
+	int[] counts;
+	
+	// Scratch space for choosing which candidates to chain
+	long[] heap;
+
+	HitBuffer()
+	{
+		keys = new long[1024];
+		theirPos = new int[1024];
+		tmpKeys = new long[1024];
+		tmpTheirPos = new int[1024];
+		runStart = new int[65];
+		runKey = new int[64];
+		counts = new int[RADIX_MASK + 1];
+		heap = new long[64];
+		clear();
+	}
+
+	static HitBuffer buffer()
+	{
+		return buffers.get();
+	}
+
+	static ThreadLocal<HitBuffer> buffers = new ThreadLocal<HitBuffer>() {
+		protected HitBuffer initialValue()
+		{
+			return new HitBuffer();
+		}
+	};
+
+	void clear()
+	{
+		size = 0;
+		numRuns = 0;
+	}
+
+	void ensureCapacity(int capacity)
+	{
+		if(capacity > keys.length)
+		{
+			int newLength = Math.max(capacity, keys.length * 2);
+			keys = Arrays.copyOf(keys, newLength);
+			theirPos = Arrays.copyOf(theirPos, newLength);
+		}
+	}
+
+	void add(int readKey, int their, int mine)
+	{
+		ensureCapacity(size + 1);
+		keys[size] = ((long)readKey << 32) | mine;
+		theirPos[size] = their;
+		size++;
+	}
+
+	/*
+	 * Adds a hit for each of the postings (encoded ReadPositions) from index from to to-1,
+	 * for a kmer at position mine and on the given strand of the query
+	 * The candidate's strand bit is set when the kmer is on different strands in the two reads
+	 */
+	void addPostings(LongArray postings, long from, long to, int strand, int mine)
+	{
+		ensureCapacity(size + (int)(to - from));
+		long[] k = keys;
+		int[] t = theirPos;
+		int n = size;
+		for(long i = from; i<to; i++)
+		{
+			long posting = postings.get(i);
+			int rs = (int)(posting & ((1 << 30) - 1));
+			int readKey = (rs & ~1) | ((rs ^ strand) & 1);
+			k[n] = ((long)readKey << 32) | mine;
+			t[n] = (int)(posting >> 30);
+			n++;
+		}
+		size = n;
+	}
+
+	/*
+	 * The scratch array for candidates, with room for at least capacity of them
+	 */
+	long[] heap(int capacity)
+	{
+		if(heap.length < capacity)
+		{
+			heap = new long[Math.max(capacity, heap.length * 2)];
+		}
+		return heap;
+	}
+
+	int myPos(int i)
+	{
+		return (int)keys[i];
+	}
+
+	int readKey(int i)
+	{
+		return (int)(keys[i] >>> 32);
+	}
+
+	int start(int run)
+	{
+		return runStart[run];
+	}
+
+	int end(int run)
+	{
+		return runStart[run+1];
+	}
+
+	int length(int run)
+	{
+		return runStart[run+1] - runStart[run];
+	}
+
+	/*
+	 * Groups the hits by candidate, ordered by position in the query within each candidate
+	 * Hits at the same query position keep the order they were added in, and candidates on the opposite strand
+	 * have their hits reversed, so that positions in the candidate read are increasing along a chain
+	 */
+	void sort()
+	{
+		if(size < INSERTION_SORT_SIZE)
+		{
+			insertionSort();
+		}
+		else
+		{
+			radixSort();
+		}
+
+		numRuns = 0;
+		for(int i = 0; i<size; )
+		{
+			int key = readKey(i);
+			int j = i + 1;
+			while(j < size && readKey(j) == key) j++;
+			if(numRuns == runKey.length)
+			{
+				runKey = Arrays.copyOf(runKey, numRuns * 2);
+				runStart = Arrays.copyOf(runStart, numRuns * 2 + 1);
+			}
+			runKey[numRuns] = key;
+			runStart[numRuns] = i;
+			numRuns++;
+			if(key % 2 != 0)
+			{
+				reverse(i, j);
+			}
+			i = j;
+		}
+		runStart[numRuns] = size;
+	}
+
+	void insertionSort()
+	{
+		for(int i = 1; i<size; i++)
+		{
+			long key = keys[i];
+			int their = theirPos[i];
+			int j = i - 1;
+			while(j >= 0 && keys[j] > key)
+			{
+				keys[j+1] = keys[j];
+				theirPos[j+1] = theirPos[j];
+				j--;
+			}
+			keys[j+1] = key;
+			theirPos[j+1] = their;
+		}
+	}
+
+	/*
+	 * A stable least-significant-digit radix sort, skipping digits which are zero in every key
+	 */
+	void radixSort()
+	{
+		if(tmpKeys.length < size)
+		{
+			tmpKeys = new long[keys.length];
+			tmpTheirPos = new int[keys.length];
+		}
+		long allBits = 0;
+		for(int i = 0; i<size; i++) allBits |= keys[i];
+		for(int shift = 0; shift < 64; shift += RADIX_BITS)
+		{
+			if(((allBits >>> shift) & RADIX_MASK) == 0)
+			{
+				continue;
+			}
+			Arrays.fill(counts, 0);
+			for(int i = 0; i<size; i++)
+			{
+				counts[(int)((keys[i] >>> shift) & RADIX_MASK)]++;
+			}
+			int total = 0;
+			for(int d = 0; d<=RADIX_MASK; d++)
+			{
+				int count = counts[d];
+				counts[d] = total;
+				total += count;
+			}
+			for(int i = 0; i<size; i++)
+			{
+				int dest = counts[(int)((keys[i] >>> shift) & RADIX_MASK)]++;
+				tmpKeys[dest] = keys[i];
+				tmpTheirPos[dest] = theirPos[i];
+			}
+			long[] swapKeys = keys;
+			keys = tmpKeys;
+			tmpKeys = swapKeys;
+			int[] swapPos = theirPos;
+			theirPos = tmpTheirPos;
+			tmpTheirPos = swapPos;
+		}
+	}
+
+	void reverse(int from, int to)
+	{
+		for(int i = from, j = to - 1; i < j; i++, j--)
+		{
+			long key = keys[i];
+			keys[i] = keys[j];
+			keys[j] = key;
+			int their = theirPos[i];
+			theirPos[i] = theirPos[j];
+			theirPos[j] = their;
+		}
+	}
+}
@@ -0,0 +1,277 @@
+/*
+ * A versioned binary file holding a CompactIndex along with what is needed to reuse it on a later run:
+ * the length threshold and the names of the indexed reads
+ * The file is keyed by a fingerprint of the input file and the parameters which affect the index,
+ * and the index arrays are memory-mapped when it is opened so nothing has to be rebuilt
+ *
+ * Layout (all numbers little-endian):
+ *   header: magic, version, k, w, posStrandBits, maxOccurrences, indexSize, maskFraction,
+ *           input size, input modification time, CRC32 of the start of the input,
+ *           length threshold, number of reads, length of the names section
+ *   names: each name as its length in bytes followed by its UTF-8 bytes
+ *   padding up to a multiple of 8 bytes
+ *   keys, offsets, postings, mask bits: each as its length followed by its values
+ */
+
+package hydroplane;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.zip.CRC32;
+
+public class IndexFile {
+	static final long MAGIC = 0x5844494e41505948L; // "HYPANIDX"
+	static final int VERSION = 2;
+	static final int HEADER_SIZE = 88;
+
+	// How much of the start of the input is included in its fingerprint
+	static final int FINGERPRINT_BYTES = 1 << 20;
+
+	int lengthThreshold;
+	String[] names;
+	CompactIndex index;
+
+	IndexFile(int lengthThreshold, String[] names, CompactIndex index)
+	{
+		this.lengthThreshold = lengthThreshold;
+		this.names = names;
+		this.index = index;
+	}
+
+	/*
+	 * Whether the indexed reads have exactly the names stored in this file
+	 */
+	boolean matches(Read[] data)
+	{
+		if(data.length != names.length) return false;
+		for(int i = 0; i<data.length; i++)
+		{
+			if(!data[i].n.equals(names[i])) return false;
+		}
+		return true;
+	}
+
+	/*
+	 * Opens an index file, returning null if it does not exist or was built from
+	 * a different input or with different parameters
+	 */
+	static IndexFile open(String ifn, CommandLineParser clp) throws IOException
+	{
+		FileChannel fc;
+		try
+		{
+			fc = FileChannel.open(Paths.get(ifn), StandardOpenOption.READ);
+		}
+		catch(NoSuchFileException e)
+		{
+			return null;
+		}
+		try
+		{
+			ByteBuffer header = readBytes(fc, 0, HEADER_SIZE);
+			if(header == null) return null;
+			ByteBuffer expected = header(clp, 0, 0, 0);
+			for(int i = 0; i<expected.limit(); i++)
+			{
+				if(header.get(i) != expected.get(i))
+				{
+					return null;
+				}
+			}
+			int lengthThreshold = header.getInt(expected.limit());
+			int numReads = header.getInt(expected.limit() + 4);
+			long namesLength = header.getLong(expected.limit() + 8);
+
+			ByteBuffer nameBytes = readBytes(fc, HEADER_SIZE, (int)namesLength);
+			if(nameBytes == null) return null;
+			String[] names = new String[numReads];
+			for(int i = 0; i<numReads; i++)
+			{
+				int length = nameBytes.getInt();
+				names[i] = new String(nameBytes.array(), nameBytes.position(), length, StandardCharsets.UTF_8);
+				nameBytes.position(nameBytes.position() + length);
+			}
+
+			long position = align(HEADER_SIZE + namesLength);
+			LongArray[] arrays = new LongArray[4];
+			for(int i = 0; i<arrays.length; i++)
+			{
+				ByteBuffer size = readBytes(fc, position, 8);
+				if(size == null) return null;
+				long length = size.getLong(0);
+				if(position + 8 + 8 * length > fc.size()) return null;
+				arrays[i] = LongArray.map(fc, position + 8, length);
+				position += 8 + 8 * length;
+			}
+			return new IndexFile(lengthThreshold, names, new CompactIndex(arrays[0], arrays[1], arrays[2], arrays[3]));
+		}
+		finally
+		{
+			// Mappings stay valid after the channel is closed
+			fc.close();
+		}
+	}
+
+	/*
+	 * Writes an index to a temporary file and then moves it into place,
+	 * so a partially written index is never picked up by a later run
+	 * The temporary file has a unique name, so several processes can write the same index at once,
+	 * and whichever moves its file into place last wins with an identical index
+	 */
+	static void write(String ifn, CommandLineParser clp, int lengthThreshold, List<String> names, CompactIndex index) throws IOException
+	{
+		Path path = Paths.get(ifn).toAbsolutePath();
+		Path tmp = Files.createTempFile(path.getParent(), path.getFileName().toString() + ".", ".tmp");
+		boolean moved = false;
+		try
+		{
+			writeTo(tmp, clp, lengthThreshold, names, index);
+			Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			moved = true;
+		}
+		finally
+		{
+			if(!moved)
+			{
+				Files.deleteIfExists(tmp);
+			}
+		}
+	}
+	
+	static void writeTo(Path tmp, CommandLineParser clp, int lengthThreshold, List<String> names, CompactIndex index) throws IOException
+	{
+
+		byte[][] nameBytes = new byte[names.size()][];
+		long namesLength = 0;
+		for(int i = 0; i<nameBytes.length; i++)
+		{
+			nameBytes[i] = names.get(i).getBytes(StandardCharsets.UTF_8);
+			namesLength += 4 + nameBytes[i].length;
+		}
+
+		FileChannel fc = FileChannel.open(tmp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		try
+		{
+			ByteBuffer header = header(clp, lengthThreshold, nameBytes.length, namesLength);
+			header.position(0).limit(HEADER_SIZE);
+			writeFully(fc, header);
+
+			ByteBuffer buf = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+			for(byte[] name : nameBytes)
+			{
+				if(buf.remaining() < 4 + name.length)
+				{
+					buf.flip();
+					writeFully(fc, buf);
+					buf = ByteBuffer.allocate(Math.max(buf.capacity(), 4 + name.length)).order(ByteOrder.LITTLE_ENDIAN);
+				}
+				buf.putInt(name.length);
+				buf.put(name);
+			}
+			buf.flip();
+			writeFully(fc, buf);
+			writeFully(fc, ByteBuffer.allocate((int)(align(HEADER_SIZE + namesLength) - HEADER_SIZE - namesLength)));
+
+			for(LongArray a : new LongArray[] {index.keys, index.offsets, index.postings, index.maskBits})
+			{
+				ByteBuffer size = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+				size.putLong(0, a.size());
+				writeFully(fc, size);
+				a.writeTo(fc);
+			}
+			fc.force(true);
+		}
+		finally
+		{
+			fc.close();
+		}
+	}
+
+	/*
+	 * The header for the current input and parameters
+	 * Its limit is set to the end of the fields which must match for an index file to be reused
+	 */
+	static ByteBuffer header(CommandLineParser clp, int lengthThreshold, int numReads, long namesLength) throws IOException
+	{
+		File input = new File(clp.fn);
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		header.putLong(MAGIC);
+		header.putInt(VERSION);
+		header.putInt(clp.k);
+		header.putInt(clp.w);
+		header.putInt(clp.posStrandBits);
+		header.putInt(clp.maxOccurrences);
+		header.putInt(0);
+		header.putDouble(clp.indexSize);
+		header.putDouble(clp.maskFraction);
+		header.putLong(input.length());
+		header.putLong(input.lastModified());
+		header.putLong(startChecksum(clp.fn));
+		int matchedLength = header.position();
+		header.putInt(lengthThreshold);
+		header.putInt(numReads);
+		header.putLong(namesLength);
+		header.limit(matchedLength);
+		return header;
+	}
+
+	/*
+	 * A checksum of the first bytes of a file, so that an input which was replaced
+	 * by one of the same size is still noticed
+	 */
+	static long startChecksum(String fn) throws IOException
+	{
+		FileChannel fc = FileChannel.open(Paths.get(fn), StandardOpenOption.READ);
+		try
+		{
+			ByteBuffer buf = ByteBuffer.allocate((int)Math.min(fc.size(), FINGERPRINT_BYTES));
+			while(buf.hasRemaining() && fc.read(buf) >= 0);
+			CRC32 crc = new CRC32();
+			crc.update(buf.array(), 0, buf.position());
+			return crc.getValue();
+		}
+		finally
+		{
+			fc.close();
+		}
+	}
+
+	/*
+	 * Reads length bytes starting at position, or returns null if the file is too short
+	 */
+	static ByteBuffer readBytes(FileChannel fc, long position, int length) throws IOException
+	{
+		if(length < 0 || position + length > fc.size())
+		{
+			return null;
+		}
+		ByteBuffer buf = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+		while(buf.hasRemaining())
+		{
+			if(fc.read(buf, position + buf.position()) < 0) return null;
+		}
+		buf.flip();
+		return buf;
+	}
+
+	static void writeFully(FileChannel fc, ByteBuffer buf) throws IOException
+	{
+		while(buf.hasRemaining()) fc.write(buf);
+	}
+
+	static long align(long position)
+	{
+		return (position + 7) & ~7L;
+	}
+}
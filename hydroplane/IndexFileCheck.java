@@ -0,0 +1,107 @@
+/*
+ * Checks that several writers can save the same index file at once, as happens when query shards
+ * sharing one index file all start before it exists
+ * Every writer must succeed, the file left behind must open and match the index, and no temporary
+ * files may be left next to it
+ *
+ * Usage: java hydroplane.IndexFileCheck [writers=8] [rounds=5] [n=200]
+ */
+
+package hydroplane;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class IndexFileCheck {
+
+	public static void main(String[] args) throws Exception
+	{
+		int numWriters = 8;
+		int rounds = 5;
+		int numReads = 200;
+		for(String s : args)
+		{
+			int idx = s.indexOf('=');
+			if(idx == -1) continue;
+			String argName = s.substring(0, idx).toLowerCase();
+			String val = s.substring(idx+1);
+			if(argName.equals("writers")) numWriters = Integer.parseInt(val);
+			else if(argName.equals("rounds")) rounds = Integer.parseInt(val);
+			else if(argName.equals("n")) numReads = Integer.parseInt(val);
+		}
+
+		File dir = File.createTempFile("hydroplane-indexcheck", "");
+		dir.delete();
+		dir.mkdir();
+		File input = new File(dir, "reads.fa");
+		ReadSimulator sim = new ReadSimulator(new String[] {"genome=200000", "maxlength=20000"});
+		sim.init();
+		Read[] reads = sim.reads(numReads);
+		FileOutputStream os = new FileOutputStream(input);
+		ReadSimulator.write(reads, os, false);
+		os.close();
+
+		final String ifn = new File(dir, "reads.idx").getPath();
+		final CommandLineParser clp = new CommandLineParser(new String[] {"fn=" + input.getPath(), "ifn=" + ifn, "lf=", "nt=2"});
+		long[][] readMinimizers = CompactIndex.minimizers(reads, clp.k, clp.w, clp.posStrandBits, clp.nt, false);
+		final CompactIndex index = new CompactIndex(readMinimizers, clp.posStrandBits, clp.maxOccurrences, clp.maskFraction, clp.nt);
+		final ArrayList<String> names = new ArrayList<>();
+		for(Read r : reads) names.add(r.n);
+
+		int failures = 0;
+		for(int round = 0; round<rounds; round++)
+		{
+			new File(ifn).delete();
+			final CountDownLatch start = new CountDownLatch(1);
+			final AtomicInteger errors = new AtomicInteger(0);
+			Thread[] writers = new Thread[numWriters];
+			for(int i = 0; i<numWriters; i++)
+			{
+				writers[i] = new Thread() {
+					public void run()
+					{
+						try
+						{
+							start.await();
+							IndexFile.write(ifn, clp, 1000, names, index);
+						}
+						catch(Exception e)
+						{
+							if(errors.incrementAndGet() <= 3)
+							{
+								System.out.println("Writer failed: " + e);
+							}
+						}
+					}
+				};
+				writers[i].start();
+			}
+			start.countDown();
+			for(Thread t : writers) t.join();
+
+			IndexFile saved = IndexFile.open(ifn, clp);
+			boolean ok = errors.get() == 0 && saved != null && Arrays.equals(saved.names, names.toArray(new String[0]))
+					&& saved.index.postings.size() == index.postings.size() && saved.index.keys.size() == index.keys.size();
+			String[] leftover = dir.list();
+			if(leftover.length != 2)
+			{
+				ok = false;
+				System.out.println("Files left behind: " + Arrays.toString(leftover));
+			}
+			if(!ok)
+			{
+				failures++;
+			}
+			System.out.println("Round " + (round + 1) + ": " + numWriters + " writers, " + errors.get() + " failed, index "
+					+ (saved == null ? "missing" : "readable"));
+		}
+		System.out.println("Checked " + rounds + " rounds: " + failures + " failures");
+
+		for(File f : dir.listFiles()) f.delete();
+		dir.delete();
+	}
+}
@@ -1,31 +1,195 @@
+/*
+ * Writes a record for each read checked for containment, streaming them to disk as they are produced
+ * Worker threads hand records to a writer thread through a bounded queue, which blocks them when it is full
+ * so that a slow disk slows the workers down instead of filling the heap
+ * The writer takes records off the queue in batches and flushes whenever it catches up
+ *
+ * Records are written as tab-separated lines, or in a compact binary format which can be turned into
+ * the same lines with: java hydroplane.Logger <binary log file>
+ * A sampling rate below 1 logs only that proportion of reads, chosen by a hash of the read name
+ * so the same reads are logged on every run
+ */
+
 package hydroplane;
 
-import java.io.File;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 public class Logger {
+	// The most records waiting to be written before workers block
+	static final int QUEUE_SIZE = 4096;
+
+	// The most records written between checks of the queue
+	static final int BATCH_SIZE = 256;
+
+	static final int BINARY_MAGIC = 0x484c4f47; // "HLOG"
+
+	// Marks the end of the records
+	static final LogElement END_OF_RECORDS = new LogElement();
+
 	String ofn;
-	ConcurrentLinkedQueue<LogElement> data;
-	Logger(String ofn)
+	boolean binary;
+	double sampleRate;
+	BlockingQueue<LogElement> queue;
+	WriterThread writer;
+
+	Logger(String ofn) throws IOException
+	{
+		this(ofn, false, 1.0);
+	}
+
+	Logger(String ofn, boolean binary, double sampleRate) throws IOException
 	{
 		this.ofn = ofn;
-		data = new ConcurrentLinkedQueue<LogElement>();
+		this.binary = binary;
+		this.sampleRate = sampleRate;
+		queue = new ArrayBlockingQueue<LogElement>(QUEUE_SIZE);
+		writer = new WriterThread();
+		writer.start();
+	}
+
+	/*
+	 * Whether a read is one of those being logged
+	 */
+	boolean sampled(Read r)
+	{
+		if(sampleRate >= 1)
+		{
+			return true;
+		}
+		return (BlockedBloomFilter.mix(r.n.hashCode()) >>> 11) * 0x1.0p-53 < sampleRate;
+	}
+
+	/*
+	 * Queues a record to be written, blocking while the queue is full
+	 */
+	void add(LogElement le) throws InterruptedException
+	{
+		queue.put(le);
+	}
+
+	/*
+	 * Waits for every queued record to be written and closes the file
+	 */
+	public void close() throws IOException, InterruptedException
+	{
+		queue.put(END_OF_RECORDS);
+		writer.join();
+		if(writer.error != null)
+		{
+			throw writer.error;
+		}
 	}
-	
-	public void print() throws IOException
+
+	class WriterThread extends Thread
 	{
-		PrintWriter out = new PrintWriter(new File(ofn));
-		for(LogElement le : data)
+		Writer text;
+		DataOutputStream data;
+		IOException error;
+
+		WriterThread() throws IOException
 		{
-			out.println(le);
+			if(binary)
+			{
+				data = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(ofn), 1 << 16));
+				data.writeInt(BINARY_MAGIC);
+			}
+			else
+			{
+				text = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(ofn), StandardCharsets.UTF_8), 1 << 16);
+			}
+		}
+
+		public void run()
+		{
+			ArrayList<LogElement> batch = new ArrayList<>(BATCH_SIZE);
+			StringBuilder sb = new StringBuilder();
+			boolean done = false;
+			try
+			{
+				while(!done)
+				{
+					batch.add(queue.take());
+					queue.drainTo(batch, BATCH_SIZE - 1);
+					for(LogElement le : batch)
+					{
+						if(le == END_OF_RECORDS)
+						{
+							done = true;
+							break;
+						}
+						if(binary)
+						{
+							le.write(data);
+						}
+						else
+						{
+							sb.setLength(0);
+							le.append(sb);
+							sb.append('\n');
+							text.append(sb);
+						}
+					}
+					batch.clear();
+					if(queue.isEmpty())
+					{
+						if(binary) data.flush();
+						else text.flush();
+					}
+				}
+			}
+			catch(IOException e)
+			{
+				error = e;
+			}
+			catch(InterruptedException e)
+			{
+				error = new IOException(e);
+			}
+			finally
+			{
+				try
+				{
+					if(binary) data.close();
+					else text.close();
+				}
+				catch(IOException e)
+				{
+					if(error == null) error = e;
+				}
+			}
+			if(error != null)
+			{
+				// Keep taking records so that workers are never blocked on a writer which has stopped
+				System.err.println("Error writing log: " + error.getMessage());
+				while(!done)
+				{
+					try
+					{
+						done = queue.take() == END_OF_RECORDS;
+					}
+					catch(InterruptedException e)
+					{
+						return;
+					}
+				}
+			}
 		}
-		out.close();
 	}
-	
+
 	static class LogElement
 	{
 		String readName;
@@ -43,13 +207,166 @@ public class Logger {
 		ArrayList<String> dpNames;
 		LogElement()
 		{
-			
+
+		}
+
+		/*
+		 * Appends the record as a tab-separated line, without the newline
+		 */
+		void append(StringBuilder sb)
+		{
+			sb.append(readName).append('\t').append(longestChain).append('\t');
+			appendArray(sb, chain);
+			sb.append('\t').append(readLength).append('\t').append(numCandidates).append('\t').append(numMinimizers)
+				.append('\t').append(contained).append('\t').append(leftEnd).append('\t').append(rightEnd)
+				.append('\t').append(containingName).append('\t');
+			appendArray(sb, theirChain);
+			sb.append('\t').append(ctScore).append('\t').append(dpNames);
 		}
+
+		static void appendArray(StringBuilder sb, int[] a)
+		{
+			sb.append('[');
+			for(int i = 0; i<a.length; i++)
+			{
+				if(i > 0) sb.append(", ");
+				sb.append(a[i]);
+			}
+			sb.append(']');
+		}
+
 		public String toString()
 		{
-			return readName + "\t" + longestChain + "\t" + Arrays.toString(chain) + "\t" + readLength + "\t" 
-					+ numCandidates + "\t" + numMinimizers + "\t" + contained + "\t" + leftEnd + "\t" + rightEnd + "\t"
-					+ containingName + "\t" + Arrays.toString(theirChain) + "\t" + ctScore + "\t" + dpNames;
+			StringBuilder sb = new StringBuilder();
+			append(sb);
+			return sb.toString();
+		}
+
+		/*
+		 * Writes the record in the binary format - the chains are written as differences from the previous position,
+		 * which are small
+		 */
+		void write(DataOutputStream out) throws IOException
+		{
+			out.writeUTF(readName);
+			out.writeInt(longestChain);
+			out.writeInt(readLength);
+			out.writeInt(numCandidates);
+			out.writeInt(numMinimizers);
+			out.writeBoolean(contained);
+			out.writeInt(leftEnd);
+			out.writeInt(rightEnd);
+			out.writeUTF(containingName);
+			out.writeDouble(ctScore);
+			writeDeltas(out, chain);
+			writeDeltas(out, theirChain);
+			out.writeInt(dpNames.size());
+			for(String name : dpNames) out.writeUTF(name);
+		}
+
+		static LogElement read(DataInputStream in) throws IOException
+		{
+			LogElement le = new LogElement();
+			le.readName = in.readUTF();
+			le.longestChain = in.readInt();
+			le.readLength = in.readInt();
+			le.numCandidates = in.readInt();
+			le.numMinimizers = in.readInt();
+			le.contained = in.readBoolean();
+			le.leftEnd = in.readInt();
+			le.rightEnd = in.readInt();
+			le.containingName = in.readUTF();
+			le.ctScore = in.readDouble();
+			le.chain = readDeltas(in);
+			le.theirChain = readDeltas(in);
+			int numNames = in.readInt();
+			le.dpNames = new ArrayList<String>();
+			for(int i = 0; i<numNames; i++) le.dpNames.add(in.readUTF());
+			return le;
+		}
+
+		static void writeDeltas(DataOutputStream out, int[] a) throws IOException
+		{
+			writeVarInt(out, a.length);
+			int last = 0;
+			for(int x : a)
+			{
+				int delta = x - last;
+				writeVarInt(out, (delta << 1) ^ (delta >> 31));
+				last = x;
+			}
+		}
+
+		static int[] readDeltas(DataInputStream in) throws IOException
+		{
+			int[] res = new int[readVarInt(in)];
+			int last = 0;
+			for(int i = 0; i<res.length; i++)
+			{
+				int zigzag = readVarInt(in);
+				last += (zigzag >>> 1) ^ -(zigzag & 1);
+				res[i] = last;
+			}
+			return res;
+		}
+
+		static void writeVarInt(DataOutputStream out, int x) throws IOException
+		{
+			while((x & ~0x7f) != 0)
+			{
+				out.writeByte((x & 0x7f) | 0x80);
+				x >>>= 7;
+			}
+			out.writeByte(x);
+		}
+
+		static int readVarInt(DataInputStream in) throws IOException
+		{
+			int res = 0;
+			for(int shift = 0; ; shift += 7)
+			{
+				int b = in.readUnsignedByte();
+				res |= (b & 0x7f) << shift;
+				if((b & 0x80) == 0) return res;
+			}
+		}
+	}
+
+	/*
+	 * Prints a binary log as tab-separated lines
+	 */
+	public static void main(String[] args) throws IOException
+	{
+		if(args.length != 1)
+		{
+			System.err.println("Usage: java hydroplane.Logger <binary log file>");
+			return;
+		}
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(args[0]), 1 << 16));
+		if(in.readInt() != BINARY_MAGIC)
+		{
+			in.close();
+			throw new IOException(args[0] + " is not a binary log");
+		}
+		StringBuilder sb = new StringBuilder();
+		BufferedWriter out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 1 << 16);
+		while(true)
+		{
+			LogElement le;
+			try
+			{
+				le = LogElement.read(in);
+			}
+			catch(EOFException e)
+			{
+				break;
+			}
+			sb.setLength(0);
+			le.append(sb);
+			sb.append('\n');
+			out.append(sb);
 		}
+		out.flush();
+		in.close();
 	}
 }
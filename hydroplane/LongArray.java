@@ -0,0 +1,127 @@
+/*
+ * A read-only array of longs backed by a sequence of LongBuffers, so it can be larger than a Java array
+ * and can live on the heap, in a memory-mapped file, or in direct (off-heap) memory
+ */
+
+package hydroplane;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+
+public class LongArray {
+	static final int CHUNK_BITS = 27;
+	static final long CHUNK_MASK = (1L << CHUNK_BITS) - 1;
+
+	LongBuffer[] chunks;
+	long size;
+
+	LongArray(LongBuffer[] chunks, long size)
+	{
+		this.chunks = chunks;
+		this.size = size;
+	}
+
+	static LongArray wrap(long[] a)
+	{
+		LongBuffer[] chunks = new LongBuffer[numChunks(a.length)];
+		for(int i = 0; i<chunks.length; i++)
+		{
+			int start = i << CHUNK_BITS;
+			chunks[i] = LongBuffer.wrap(a, start, (int)Math.min(a.length - start, 1L << CHUNK_BITS)).slice();
+		}
+		return new LongArray(chunks, a.length);
+	}
+
+	/*
+	 * Maps size longs starting at the given byte position of a file, which were written by writeTo
+	 */
+	static LongArray map(FileChannel fc, long position, long size) throws IOException
+	{
+		LongBuffer[] chunks = new LongBuffer[numChunks(size)];
+		for(int i = 0; i<chunks.length; i++)
+		{
+			long start = (long)i << CHUNK_BITS;
+			long length = Math.min(size - start, 1L << CHUNK_BITS);
+			chunks[i] = fc.map(FileChannel.MapMode.READ_ONLY, position + 8 * start, 8 * length)
+					.order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+		}
+		return new LongArray(chunks, size);
+	}
+
+	/*
+	 * A copy of this array in direct memory, which the garbage collector never has to scan or move
+	 */
+	LongArray toDirect()
+	{
+		LongBuffer[] direct = new LongBuffer[chunks.length];
+		for(int i = 0; i<chunks.length; i++)
+		{
+			LongBuffer src = chunks[i].duplicate();
+			src.clear();
+			direct[i] = ByteBuffer.allocateDirect(8 * src.capacity()).order(ByteOrder.nativeOrder()).asLongBuffer();
+			direct[i].put(src);
+			direct[i].clear();
+		}
+		return new LongArray(direct, size);
+	}
+
+	boolean isDirect()
+	{
+		return chunks.length == 0 || chunks[0].isDirect();
+	}
+
+	static int numChunks(long size)
+	{
+		return (int)((size + CHUNK_MASK) >>> CHUNK_BITS);
+	}
+
+	long get(long i)
+	{
+		return chunks[(int)(i >>> CHUNK_BITS)].get((int)(i & CHUNK_MASK));
+	}
+
+	long size()
+	{
+		return size;
+	}
+
+	/*
+	 * The index of key in this array, which must be sorted, or a negative number if it is not present
+	 */
+	long binarySearch(long key)
+	{
+		long lo = 0, hi = size - 1;
+		while(lo <= hi)
+		{
+			long mid = (lo + hi) >>> 1;
+			long val = get(mid);
+			if(val < key) lo = mid + 1;
+			else if(val > key) hi = mid - 1;
+			else return mid;
+		}
+		return -(lo + 1);
+	}
+
+	/*
+	 * Writes the array to the current position of a file as little-endian longs
+	 */
+	void writeTo(FileChannel fc) throws IOException
+	{
+		ByteBuffer buf = ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+		for(long i = 0; i<size; i++)
+		{
+			if(!buf.hasRemaining())
+			{
+				buf.flip();
+				while(buf.hasRemaining()) fc.write(buf);
+				buf.clear();
+			}
+			buf.putLong(get(i));
+		}
+		buf.flip();
+		while(buf.hasRemaining()) fc.write(buf);
+	}
+}
@@ -1,6 +1,7 @@
 package hydroplane;
 
 import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.Queue;
@@ -16,20 +17,20 @@ public class MerMaker {
 	static long[][] kmerize(String s, int k)
 	{
 		long[][] res = new long[2][s.length() - k + 1];
-		long[] slidingKmer = new long[2];
-		for(int i = 0; i<k; i++)
-		{
-			char ch = s.charAt(i);
-			slidingKmer = updateSlidingKmer(slidingKmer, ch, k);
-		}
-		for(int i = k; i <= s.length(); i++)
+		long allButHighest = ((1L<< (2*k - 2)) - 1);
+		long kmer = 0, revComp = 0;
+		for(int i = 0; i<s.length(); i++)
 		{
-			res[0][i-k] = slidingKmer[0];
-			res[1][i-k] = slidingKmer[1];
-			// Update kmers
-			if(i == s.length()) break;
-			char ch = s.charAt(i);
-			slidingKmer = updateSlidingKmer(slidingKmer, ch, k);
+			// Append the character to the kmer and prepend its complement to the reverse complement
+			int c = charToInt(s.charAt(i));
+			kmer = ((kmer&allButHighest) << 2) | c;
+			revComp >>= 2;
+			revComp |= ((long)(c ^ 3) << (2*k - 2));
+			if(i >= k - 1)
+			{
+				res[0][i-k+1] = kmer;
+				res[1][i-k+1] = revComp;
+			}
 		}
 		return res;
 	}
@@ -74,6 +75,17 @@ public class MerMaker {
 	 *     The next 2*k bits are the contents of the kmer itself (after going through a random hash)
 	 */
 	static long[] minimizers(String s, int k, int w, int posStrandBits)
+	{
+		MinimizerEngine engine = engine();
+		int count = engine.compute(s, k, w, posStrandBits);
+		return Arrays.copyOf(engine.out, count);
+	}
+	
+	/*
+	 * The original version of minimizers, using a boxed minimum queue and a hash set to remove duplicates,
+	 * kept to check MinimizerEngine against - it gives the same set of minimizers in a different order
+	 */
+	static long[] minimizersReference(String s, int k, int w, int posStrandBits)
 	{
 		long[][] kmers = kmerize(s, k);
 		MinQueue mq = new MinQueue(posStrandBits);
@@ -110,27 +122,20 @@ public class MerMaker {
 	}
 	
 	/*
-	 * Appends a character to the end of an encoded kmer (and beginning of its reverse complement)
-	 *  and removes a character from the other end to keep the length as k.
+	 * The minimizer engine belonging to the current thread
 	 */
-	static long[] updateSlidingKmer(long[] cur, char ch, int k)
+	static MinimizerEngine engine()
 	{
-		long kmer = cur[0];
-		long revComp = cur[1];
-		int c = charToInt(ch);
-		
-		// Update kmer
-		long allButHighest = ((1L<< (2*k - 2)) - 1);
-		kmer = ((kmer&allButHighest) << 2) | c;
-		
-		// Update reverse complement kmer
-		long rc = c ^ 3;
-		revComp >>= 2;
-		revComp |= (rc << (2*k - 2));
-		
-		return new long[] {kmer, revComp};
+		return engines.get();
 	}
 	
+	static ThreadLocal<MinimizerEngine> engines = new ThreadLocal<MinimizerEngine>() {
+		protected MinimizerEngine initialValue()
+		{
+			return new MinimizerEngine();
+		}
+	};
+	
 	/*
 	 * A/a = 0, C/c = 1, G/g = 2, T/t = 3
 	 */
@@ -152,6 +157,7 @@ public class MerMaker {
 	 *  remove() -> Removes an element from the beginning of the queue
 	 *  
 	 *  All of these operations are amortized constant time
+	 *  Only used by minimizersReference
 	 */
 	static class MinQueue
 	{
@@ -198,4 +204,164 @@ public class MerMaker {
 			if(!d.isEmpty() && d.getFirst().equals(q.peek())) d.poll();
 		}
 	}
+	
+	/*
+	 * Streams the kmers of a string through a minimum queue without allocating anything per read
+	 * The buffers are reused between calls, so an engine should only ever be used by one thread,
+	 * and the minimizers in out are only valid until the next call to compute
+	 * 
+	 * The queue of the last 2w (kmer, strand) entries is a ring buffer, and the candidates for the minimum
+	 * are kept in a monotone deque (also a ring buffer) alongside a flag saying whether they have been output yet,
+	 * which takes the place of a hash set for removing duplicate minimizers
+	 */
+	static class MinimizerEngine
+	{
+		long[] out;
+		int size;
+		
+		long[] queue;
+		int queueHead, queueSize;
+		
+		long[] deque;
+		boolean[] reported;
+		int dequeHead, dequeSize;
+		
+		MinimizerEngine()
+		{
+			out = new long[1024];
+			queue = new long[32];
+			deque = new long[32];
+			reported = new boolean[32];
+		}
+		
+		/*
+		 * Computes the minimizers of s into out and returns how many there are
+		 */
+		int compute(String s, int k, int w, int posStrandBits)
+		{
+			size = 0;
+			int numKmers = s.length() - k + 1;
+			if(numKmers < w)
+			{
+				return 0;
+			}
+			
+			// The queue never holds more than 2w entries
+			if(queue.length < 2*w)
+			{
+				queue = new long[Integer.highestOneBit(2*w) << 1];
+			}
+			queueHead = queueSize = 0;
+			dequeHead = dequeSize = 0;
+			
+			long allButHighest = ((1L<< (2*k - 2)) - 1);
+			long kmer = 0, revComp = 0;
+			for(int i = 0; i<s.length(); i++)
+			{
+				// Update the kmer and its reverse complement with the next character
+				int c = charToInt(s.charAt(i));
+				kmer = ((kmer&allButHighest) << 2) | c;
+				revComp >>= 2;
+				revComp |= ((long)(c ^ 3) << (2*k - 2));
+				
+				int kmerStart = i - k + 1;
+				if(kmerStart < 0)
+				{
+					continue;
+				}
+				if(kmerStart >= w)
+				{
+					addMins(posStrandBits);
+					remove();
+					add(0 + (kmerStart << 1) + (hash64(kmer, k) << posStrandBits));
+					remove();
+					add(1 + (kmerStart << 1) + (hash64(revComp, k) << posStrandBits));
+				}
+				else
+				{
+					add(0 + (kmerStart << 1) + (hash64(kmer, k) << posStrandBits));
+					add(1 + (kmerStart << 1) + (hash64(revComp, k) << posStrandBits));
+				}
+			}
+			return size;
+		}
+		
+		/*
+		 * Outputs every element with the minimum hashed kmer value which has not been output already
+		 */
+		void addMins(int posStrandBits)
+		{
+			int mask = deque.length - 1;
+			long minHash = deque[dequeHead] >> posStrandBits;
+			for(int i = 0; i<dequeSize; i++)
+			{
+				int idx = (dequeHead + i) & mask;
+				if((deque[idx] >> posStrandBits) != minHash)
+				{
+					break;
+				}
+				if(!reported[idx])
+				{
+					reported[idx] = true;
+					if(size == out.length)
+					{
+						out = Arrays.copyOf(out, out.length * 2);
+					}
+					out[size++] = deque[idx];
+				}
+			}
+		}
+		
+		/*
+		 * Adds x to the end of the queue
+		 */
+		void add(long x)
+		{
+			queue[(queueHead + queueSize) & (queue.length - 1)] = x;
+			queueSize++;
+			
+			while(dequeSize > 0 && deque[(dequeHead + dequeSize - 1) & (deque.length - 1)] > x)
+			{
+				dequeSize--;
+			}
+			if(dequeSize == deque.length)
+			{
+				growDeque();
+			}
+			int idx = (dequeHead + dequeSize) & (deque.length - 1);
+			deque[idx] = x;
+			reported[idx] = false;
+			dequeSize++;
+		}
+		
+		/*
+		 * Removes an element from the beginning of the queue, and from the front of the deque if it
+		 * matches the new head of the queue
+		 */
+		void remove()
+		{
+			if(queueSize == 0) return;
+			queueHead = (queueHead + 1) & (queue.length - 1);
+			queueSize--;
+			if(dequeSize > 0 && queueSize > 0 && deque[dequeHead] == queue[queueHead])
+			{
+				dequeHead = (dequeHead + 1) & (deque.length - 1);
+				dequeSize--;
+			}
+		}
+		
+		void growDeque()
+		{
+			long[] newDeque = new long[deque.length * 2];
+			boolean[] newReported = new boolean[deque.length * 2];
+			for(int i = 0; i<dequeSize; i++)
+			{
+				newDeque[i] = deque[(dequeHead + i) & (deque.length - 1)];
+				newReported[i] = reported[(dequeHead + i) & (deque.length - 1)];
+			}
+			deque = newDeque;
+			reported = newReported;
+			dequeHead = 0;
+		}
+	}
 }
@@ -0,0 +1,203 @@
+/*
+ * Counters and timers for each stage of the sieve, which can be written to a file periodically and at exit
+ * Every counter is a LongAdder, so threads updating the same counter add to different cells
+ * instead of contending on one value, and reading it sums the cells
+ * Timers are counters of nanoseconds, so the split of time between stages is their ratio
+ * A thread can stop counting while it does work which should not be reported, such as checking a read
+ * a second time only to compare the answers
+ *
+ * The file is either JSON or the Prometheus text format, and is replaced atomically each time
+ * it is written so that a reader never sees a partial file
+ */
+
+package hydroplane;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.LongAdder;
+
+public class Metrics {
+
+	@SuppressWarnings("serial")
+	static class Counter extends LongAdder
+	{
+		String name;
+		String help;
+		Counter(String name, String help)
+		{
+			this.name = name;
+			this.help = help;
+		}
+		
+		/*
+		 * Adds to the counter unless the calling thread has paused counting - increment() goes through here too
+		 */
+		public void add(long x)
+		{
+			if(!paused.get()[0])
+			{
+				super.add(x);
+			}
+		}
+	}
+	
+	// Whether each thread has paused counting
+	static ThreadLocal<boolean[]> paused = new ThreadLocal<boolean[]>() {
+		protected boolean[] initialValue()
+		{
+			return new boolean[1];
+		}
+	};
+	
+	/*
+	 * Stops or resumes counting on the calling thread
+	 */
+	static void pause(boolean pause)
+	{
+		paused.get()[0] = pause;
+	}
+
+	static ArrayList<Counter> counters = new ArrayList<>();
+
+	static Counter counter(String name, String help)
+	{
+		Counter c = new Counter(name, help);
+		counters.add(c);
+		return c;
+	}
+
+	// Parsing the input file
+	static final Counter readsParsed = counter("reads_parsed_total", "Reads parsed from the input, over all passes");
+	static final Counter basesParsed = counter("bases_parsed_total", "Bases parsed from the input, over all passes");
+	static final Counter parseNanos = counter("parse_nanoseconds_total", "Time spent parsing sequences");
+
+	// Checking reads for containment
+	static final Counter queries = counter("queries_total", "Reads checked for containment");
+	static final Counter minimizers = counter("minimizers_total", "Minimizers extracted from queries");
+	static final Counter minimizerNanos = counter("minimizer_nanoseconds_total", "Time spent extracting minimizers from queries");
+	static final Counter indexProbes = counter("index_probes_total", "Lookups of query minimizers in the index, after the filter");
+	static final Counter maskedSkipped = counter("masked_minimizers_skipped_total", "Query minimizers found in the index but masked as too frequent");
+	static final Counter hits = counter("hits_total", "Kmer matches between queries and indexed reads");
+	static final Counter hitNanos = counter("hit_nanoseconds_total", "Time spent finding and sorting kmer matches");
+	static final Counter candidates = counter("candidates_total", "Indexed reads sharing at least one kmer with a query");
+	static final Counter candidatesChained = counter("candidates_chained_total", "Candidates with enough shared kmers to be chained");
+	static final Counter lisCalls = counter("lis_calls_total", "Chains of kmer matches computed");
+	static final Counter lisNanos = counter("lis_nanoseconds_total", "Time spent chaining kmer matches");
+	static final Counter dpCalls = counter("dp_calls_total", "Banded alignments computed");
+	static final Counter dpCells = counter("dp_cells_total", "Cells filled in banded alignments");
+	static final Counter dpNanos = counter("dp_nanoseconds_total", "Time spent in banded alignments");
+	static final Counter containedByLength = counter("contained_by_length_total", "Reads called contained for being shorter than the minimum length");
+	static final Counter containedByChain = counter("contained_by_chain_total", "Reads called contained by a chain of kmer matches");
+	static final Counter containedByDp = counter("contained_by_dp_total", "Reads called contained by alignment");
+	static final Counter queryNanos = counter("query_nanoseconds_total", "Time spent checking reads for containment");
+
+	static long startTime = System.currentTimeMillis();
+	static ExportThread exporter;
+
+	/*
+	 * Starts writing the metrics to fn every intervalSeconds seconds, as JSON or in the Prometheus text format
+	 */
+	static void start(String fn, boolean json, int intervalSeconds)
+	{
+		exporter = new ExportThread(fn, json, intervalSeconds);
+		exporter.setDaemon(true);
+		exporter.start();
+	}
+
+	/*
+	 * Stops the periodic export, if any, and writes the final values
+	 */
+	static void stop() throws IOException, InterruptedException
+	{
+		if(exporter == null)
+		{
+			return;
+		}
+		exporter.interrupt();
+		exporter.join();
+		write(exporter.fn, exporter.json);
+		exporter = null;
+	}
+
+	static String json()
+	{
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\n");
+		sb.append("  \"timestamp_ms\": " + System.currentTimeMillis() + ",\n");
+		sb.append("  \"uptime_ms\": " + (System.currentTimeMillis() - startTime));
+		for(Counter c : counters)
+		{
+			sb.append(",\n  \"" + c.name + "\": " + c.sum());
+		}
+		sb.append("\n}\n");
+		return sb.toString();
+	}
+
+	static String prometheus()
+	{
+		StringBuilder sb = new StringBuilder();
+		sb.append("# HELP hydroplane_uptime_ms Milliseconds since the start of the run\n");
+		sb.append("# TYPE hydroplane_uptime_ms gauge\n");
+		sb.append("hydroplane_uptime_ms " + (System.currentTimeMillis() - startTime) + "\n");
+		for(Counter c : counters)
+		{
+			sb.append("# HELP hydroplane_" + c.name + " " + c.help + "\n");
+			sb.append("# TYPE hydroplane_" + c.name + " counter\n");
+			sb.append("hydroplane_" + c.name + " " + c.sum() + "\n");
+		}
+		return sb.toString();
+	}
+
+	/*
+	 * Writes the current values to a temporary file and moves it into place
+	 */
+	static void write(String fn, boolean json) throws IOException
+	{
+		Path path = Paths.get(fn);
+		Path tmp = Paths.get(fn + ".tmp");
+		PrintWriter out = new PrintWriter(tmp.toFile());
+		out.print(json ? json() : prometheus());
+		out.close();
+		Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	static class ExportThread extends Thread
+	{
+		String fn;
+		boolean json;
+		long intervalMillis;
+		ExportThread(String fn, boolean json, int intervalSeconds)
+		{
+			this.fn = fn;
+			this.json = json;
+			intervalMillis = 1000L * Math.max(1, intervalSeconds);
+		}
+		public void run()
+		{
+			while(true)
+			{
+				try
+				{
+					Thread.sleep(intervalMillis);
+				}
+				catch(InterruptedException e)
+				{
+					return;
+				}
+				try
+				{
+					write(fn, json);
+				}
+				catch(IOException e)
+				{
+					System.err.println("Error writing metrics: " + e.getMessage());
+				}
+			}
+		}
+	}
+}
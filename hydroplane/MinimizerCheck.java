@@ -0,0 +1,90 @@
+/*
+ * Checks the minimizers from MinimizerEngine against the original implementation on random sequences
+ * with varied k, w and alphabets, and reports how many bases per second each of them processes
+ * The two give their minimizers in different orders, so they are compared as sorted sets
+ *
+ * Usage: java hydroplane.MinimizerCheck [sequences=20000] [length=5000] [seed=1]
+ */
+
+package hydroplane;
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class MinimizerCheck {
+	// Alphabets to draw sequences from - the small ones give many repeated kmers and so many ties for the minimum
+	static final String[] ALPHABETS = {"ACGT", "acgt", "AC", "A", "ACGTN", "ACGTacgtRYN"};
+
+	public static void main(String[] args)
+	{
+		int sequences = 20000;
+		int length = 5000;
+		long seed = 1;
+		for(String s : args)
+		{
+			int idx = s.indexOf('=');
+			if(idx == -1) continue;
+			String argName = s.substring(0, idx).toLowerCase();
+			String val = s.substring(idx+1);
+			if(argName.equals("sequences")) sequences = Integer.parseInt(val);
+			else if(argName.equals("length")) length = Integer.parseInt(val);
+			else if(argName.equals("seed")) seed = Long.parseLong(val);
+		}
+
+		CommandLineParser clp = new CommandLineParser(new String[0]);
+		int posStrandBits = clp.posStrandBits;
+		Random rand = new Random(seed);
+
+		// Correctness, with the same engine reused for every sequence as it is on a worker thread
+		int mismatches = 0;
+		for(int i = 0; i<sequences; i++)
+		{
+			// The hashed kmer has to fit above the position and strand bits
+			int k = 1 + rand.nextInt((63 - posStrandBits) / 2);
+			int w = 1 + rand.nextInt(i%2 == 0 ? 4 : 30);
+			String alphabet = ALPHABETS[rand.nextInt(ALPHABETS.length)];
+			String s = randomSequence(rand, alphabet, k + w - 1 + rand.nextInt(i%2 == 0 ? 50 : length));
+			long[] expected = MerMaker.minimizersReference(s, k, w, posStrandBits);
+			long[] actual = MerMaker.minimizers(s, k, w, posStrandBits);
+			Arrays.sort(expected);
+			Arrays.sort(actual);
+			if(!Arrays.equals(expected, actual))
+			{
+				mismatches++;
+				if(mismatches <= 5)
+				{
+					System.out.println("Mismatch: expected " + expected.length + " minimizers but got " + actual.length
+							+ " for k=" + k + ", w=" + w + ", length " + s.length() + " and alphabet " + alphabet);
+				}
+			}
+		}
+		System.out.println("Checked " + sequences + " sequences: " + mismatches + " mismatches");
+
+		// Throughput, on full-length sequences with the default parameters
+		String[] reads = new String[200];
+		long bases = 0;
+		for(int i = 0; i<reads.length; i++)
+		{
+			reads[i] = randomSequence(rand, ALPHABETS[0], length);
+			bases += length;
+		}
+		for(int round = 0; round<3; round++)
+		{
+			long start = System.nanoTime();
+			long total = 0;
+			for(String s : reads) total += MerMaker.minimizersReference(s, clp.k, clp.w, posStrandBits).length;
+			long mid = System.nanoTime();
+			for(String s : reads) total -= MerMaker.engine().compute(s, clp.k, clp.w, posStrandBits);
+			long end = System.nanoTime();
+			System.out.printf("Round %d: reference %.1f Mbases/s, engine %.1f Mbases/s (difference %d)\n",
+					round + 1, bases * 1e3 / (mid - start), bases * 1e3 / (end - mid), total);
+		}
+	}
+
+	static String randomSequence(Random rand, String alphabet, int length)
+	{
+		char[] res = new char[length];
+		for(int i = 0; i<length; i++) res[i] = alphabet.charAt(rand.nextInt(alphabet.length()));
+		return new String(res);
+	}
+}
@@ -0,0 +1,155 @@
+/*
+ * Stores the sequences of the indexed reads at 2 bits per base, concatenated into one array of longs
+ * Anything other than A, C, G or T is packed as an A and recorded in a side table of runs,
+ * so every window read back is exactly the same as the original sequence
+ */
+
+package hydroplane;
+
+import java.util.Arrays;
+
+public class PackedSequenceStore {
+	static final byte[] BASES = {'A', 'C', 'G', 'T'};
+
+	// 32 bases per word, with the first base in the lowest two bits
+	LongArray words;
+
+	// Read i is bases offsets[i], ..., offsets[i+1]-1 of the concatenation
+	long[] offsets;
+
+	// Runs of a repeated non-ACGT character, sorted by start position in the concatenation
+	long[] exceptionStart;
+	int[] exceptionLength;
+	byte[] exceptionBase;
+
+	PackedSequenceStore(Read[] reads)
+	{
+		offsets = new long[reads.length + 1];
+		int numExceptions = 0;
+		for(int i = 0; i<reads.length; i++)
+		{
+			String s = reads[i].s;
+			offsets[i+1] = offsets[i] + s.length();
+			for(int j = 0; j<s.length(); j++)
+			{
+				if(code(s.charAt(j)) == -1 && (j == 0 || s.charAt(j-1) != s.charAt(j)))
+				{
+					numExceptions++;
+				}
+			}
+		}
+		long[] packed = new long[(int)((offsets[reads.length] + 31) >>> 5)];
+		exceptionStart = new long[numExceptions];
+		exceptionLength = new int[numExceptions];
+		exceptionBase = new byte[numExceptions];
+		numExceptions = 0;
+		for(int i = 0; i<reads.length; i++)
+		{
+			String s = reads[i].s;
+			long pos = offsets[i];
+			for(int j = 0; j<s.length(); j++, pos++)
+			{
+				char c = s.charAt(j);
+				int code = code(c);
+				if(code == -1)
+				{
+					if(j > 0 && s.charAt(j-1) == c)
+					{
+						exceptionLength[numExceptions-1]++;
+					}
+					else
+					{
+						exceptionStart[numExceptions] = pos;
+						exceptionLength[numExceptions] = 1;
+						exceptionBase[numExceptions] = (byte)c;
+						numExceptions++;
+					}
+					code = 0;
+				}
+				packed[(int)(pos >>> 5)] |= (long)code << ((pos & 31) << 1);
+			}
+		}
+		words = LongArray.wrap(packed);
+	}
+
+	static int code(char c)
+	{
+		switch(c)
+		{
+			case 'A': return 0;
+			case 'C': return 1;
+			case 'G': return 2;
+			case 'T': return 3;
+			default: return -1;
+		}
+	}
+
+	int numReads()
+	{
+		return offsets.length - 1;
+	}
+
+	int length(int read)
+	{
+		return (int)(offsets[read+1] - offsets[read]);
+	}
+
+	/*
+	 * The bases from index from to to-1 of a read, reverse complemented if requested
+	 * The bounds are checked like String.substring, which this replaces
+	 */
+	byte[] window(int read, int from, int to, boolean reverseComplement)
+	{
+		int length = length(read);
+		if(from < 0 || to > length || from > to)
+		{
+			throw new StringIndexOutOfBoundsException("begin " + from + ", end " + to + ", length " + length);
+		}
+		byte[] res = new byte[to - from];
+		long start = offsets[read] + from;
+		for(int i = 0; i<res.length; i++)
+		{
+			long pos = start + i;
+			res[i] = BASES[(int)(words.get(pos >>> 5) >>> ((pos & 31) << 1)) & 3];
+		}
+
+		// Put back any non-ACGT runs overlapping the window
+		long end = start + res.length;
+		int e = Arrays.binarySearch(exceptionStart, start);
+		if(e < 0)
+		{
+			e = Math.max(0, -e - 2);
+		}
+		for(; e < exceptionStart.length && exceptionStart[e] < end; e++)
+		{
+			long runStart = Math.max(start, exceptionStart[e]);
+			long runEnd = Math.min(end, exceptionStart[e] + exceptionLength[e]);
+			for(long pos = runStart; pos < runEnd; pos++)
+			{
+				res[(int)(pos - start)] = exceptionBase[e];
+			}
+		}
+
+		if(reverseComplement)
+		{
+			DynamicProgrammingAligner.reverseComplement(res);
+		}
+		return res;
+	}
+
+	/*
+	 * The number of bytes used to store the sequences
+	 */
+	long bytes()
+	{
+		return 8L * words.size() + 8L * offsets.length + 13L * exceptionStart.length;
+	}
+	
+	/*
+	 * Moves the packed bases into direct memory - the other arrays are small
+	 */
+	void moveOffHeap()
+	{
+		words = words.toDirect();
+	}
+}
@@ -6,21 +6,90 @@ package hydroplane;
 
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.Random;
 
 /*
  * Learns parameters based on a sample of short reads
+ * The sample is checked in a random order in rounds of growing size, with each round spread over several threads,
+ * and checking stops early once a 95% confidence interval for the propUncontained quantile of the shared kmer
+ * proportion is narrow enough, relative to the quantile itself
  */
 public class ParameterLearner {
 	
+	// The fewest sample reads checked before stopping early, and how much each round grows the number checked
+	static final int MIN_SAMPLE = 1000;
+	static final double ROUND_GROWTH = 1.5;
+	static final double Z = 1.96;
+	
 	double sharedCutoff;
 	double dpCutoff;
-
-	ParameterLearner(ReadIndex ri, Read[] sample, double propUncontained)
+	
+	/*
+	 * Checks only as much of the sample as is needed to know the quantile within the given relative tolerance
+	 * (or all of it if the tolerance is 0)
+	 */
+	ParameterLearner(ReadIndex ri, Read[] sample, double propUncontained, double tolerance, int numThreads)
+	{
+		this(adaptiveParamInfo(ri, sample, propUncontained, tolerance, numThreads), ri.k, propUncontained);
+	}
+	
+	static double[][] adaptiveParamInfo(ReadIndex ri, Read[] sample, double propUncontained, double tolerance, int numThreads)
+	{
+		// Shuffle so that every prefix of the sample is itself a random sample
+		Read[] order = sample.clone();
+		Random rand = new Random(0);
+		for(int i = order.length - 1; i > 0; i--)
+		{
+			int j = rand.nextInt(i + 1);
+			Read tmp = order[i];
+			order[i] = order[j];
+			order[j] = tmp;
+		}
+		
+		double[][] data = new double[order.length][];
+		int done = 0;
+		int target = tolerance > 0 ? Math.min(order.length, MIN_SAMPLE) : order.length;
+		while(done < order.length)
+		{
+			ri.getParamInfo(order, done, target, data, numThreads);
+			done = target;
+			if(tolerance > 0 && converged(data, done, propUncontained, tolerance))
+			{
+				break;
+			}
+			target = Math.min(order.length, (int)(done * ROUND_GROWTH));
+		}
+		if(done < order.length)
+		{
+			System.err.println("Learned from " + done + " of " + order.length + " sample reads");
+		}
+		return Arrays.copyOf(data, done);
+	}
+	
+	/*
+	 * Whether the ranks around the quantile in the first n values, which bound it with 95% confidence
+	 * whatever the distribution, hold values within tolerance of the quantile estimate
+	 */
+	static boolean converged(double[][] data, int n, double quantile, double tolerance)
+	{
+		double[] values = new double[n];
+		for(int i = 0; i<n; i++) values[i] = data[i][0];
+		Arrays.sort(values);
+		double halfWidth = Z * Math.sqrt(n * quantile * (1 - quantile));
+		int lo = Math.max(0, (int)Math.floor(n * quantile - halfWidth));
+		int hi = Math.min(n - 1, (int)Math.ceil(n * quantile + halfWidth));
+		double estimate = values[Math.min(n - 1, (int)(n * quantile))];
+		return values[hi] - values[lo] <= tolerance * estimate;
+	}
+	
+	/*
+	 * Learns from the parameter information already gathered for each read of the sample
+	 */
+	ParameterLearner(double[][] data, int k, double propUncontained)
 	{
-		double[][] data = ri.getParamInfo(sample);
 		Integer[] sortedByPropShared = sortByIndex(data, 0);
-		sharedCutoff = data[sortedByPropShared[(int)(sample.length * propUncontained)]][0];
-		double error = 1 - Math.pow(data[sortedByPropShared[(int)(sample.length * propUncontained)]][0], .5 / ri.k);
+		sharedCutoff = data[sortedByPropShared[(int)(data.length * propUncontained)]][0];
+		double error = 1 - Math.pow(data[sortedByPropShared[(int)(data.length * propUncontained)]][0], .5 / k);
 		double expectedDifferentBases = error*2 - error*error;
 		dpCutoff = 1 - 2 * expectedDifferentBases;
 		dpCutoff = dpCutoff * dpCutoff;
@@ -6,6 +6,9 @@ import java.util.ArrayList;
 public class Read 
 {
 	String n, s;
+	
+	// The base qualities, if they were read from a FASTQ file and are needed for the output
+	String q;
 	int i;
 	Read(String name, String seq, int index)
 	{
@@ -2,12 +2,15 @@ package hydroplane;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 public class ReadIndex {
 	int n;
 	int k;
 	int w;
 	int[] countContaining;
+	CompactIndex compactIndex;
 	HashMap<Integer, LongList>[] kmerMap;
 	HashSet<Long> badKmers;
 	ArrayList<String> longReadNames;
@@ -15,81 +18,300 @@ public class ReadIndex {
 	boolean verbose;
 	CommandLineParser clp;
 	int lengthThreshold;
-	Read[] data;
 	DynamicProgrammingAligner dpa;
 	
-	@SuppressWarnings("unchecked")
+	// The sequences of the indexed reads, packed at 2 bits per base
+	PackedSequenceStore sequences;
+	
+	// Rejects most kmers which are not in the index before looking them up, if enabled
+	BlockedBloomFilter filter;
+	
+	// The masked kmers, which are left out of the filter, so that lookups of them can still be counted
+	// when the filter rejects them (null if there are none)
+	BlockedBloomFilter maskedFilter;
+	
+	// How many kmers were looked up, how many the filter rejected, and how many it let through
+	// which turned out not to be in the index
+	LongAdder filterLookups = new LongAdder();
+	LongAdder filterRejected = new LongAdder();
+	LongAdder filterFalsePositives = new LongAdder();
+	
+	// How many candidates were not chained because of the limit on candidates, and when checking the limit,
+	// how many reads were checked against all candidates and how many of them got a different answer
+	LongAdder candidatesDropped = new LongAdder();
+	LongAdder topCandidatesChecked = new LongAdder();
+	LongAdder topCandidatesChanged = new LongAdder();
+	
 	ReadIndex(ReadLengthSeparator re, CommandLineParser clp) throws IOException
+	{
+		this(re, clp, null);
+	}
+	
+	/*
+	 * Builds the index, or takes it from a saved index file if one is given
+	 */
+	@SuppressWarnings("unchecked")
+	ReadIndex(ReadLengthSeparator re, CommandLineParser clp, IndexFile saved) throws IOException
 	{
 		dpa = new DynamicProgrammingAligner();
 		lengthThreshold = re.lengthThreshold;
-		this.data = re.data;
 		this.clp = clp;
 		w = clp.w;
 		verbose = clp.verbose;
 		k = clp.k;
 		n = re.data.length;
 		countContaining = new int[n];
-		kmerMap = new HashMap[1<<clp.logNumMaps];
-		for(int i = 0; i<(1<<clp.logNumMaps); i++) kmerMap[i] = new HashMap<>();
-		badKmers = new HashSet<>();
 		longReadNames = new ArrayList<>();
 		long totalReadLength = 0;
-		System.err.println("Building index with " + n + " reads");
-		for(int i = 0; i<n; i++)
+		if(saved != null)
+		{
+			System.err.println("Loading index with " + n + " reads from " + clp.indexFile);
+		}
+		else
 		{
-			add(i, re.data[i]);
-			if(clp.verbose && i > 0 && i%1000 == 0)
+			System.err.println("Building index with " + n + " reads");
+		}
+		if(clp.legacyIndex)
+		{
+			kmerMap = new HashMap[1<<clp.logNumMaps];
+			for(int i = 0; i<(1<<clp.logNumMaps); i++) kmerMap[i] = new HashMap<>();
+			badKmers = new HashSet<>();
+			for(int i = 0; i<n; i++)
+			{
+				add(i, re.data[i]);
+				if(clp.verbose && i > 0 && i%1000 == 0)
+				{
+					System.err.println("Added " + i + " reads");
+				}
+				totalReadLength += re.data[i].s.length();
+			}
+		}
+		else
+		{
+			for(int i = 0; i<n; i++)
+			{
+				longReadNames.add(re.data[i].n);
+				totalReadLength += re.data[i].s.length();
+			}
+			if(saved != null)
+			{
+				compactIndex = saved.index;
+			}
+			else
 			{
-				System.err.println("Added " + i + " reads");
+				long[][] readMinimizers = CompactIndex.minimizers(re.data, k, w, clp.posStrandBits, clp.nt, clp.verbose);
+				compactIndex = new CompactIndex(readMinimizers, clp.posStrandBits, clp.maxOccurrences, clp.maskFraction, clp.nt);
+				System.err.println("Masking kmers occurring more than " + compactIndex.occurrenceCap + " times");
+				if(clp.indexFile != null)
+				{
+					IndexFile.write(clp.indexFile, clp, lengthThreshold, longReadNames, compactIndex);
+					System.err.println("Saved index to " + clp.indexFile);
+				}
 			}
-			totalReadLength += re.data[i].s.length();
 		}
 		System.err.println("Index built with " + n + " reads having total length " + totalReadLength);
-		int numKmers = 0;
-		for(HashMap<Integer, LongList> hm : kmerMap) numKmers += hm.size();
+		
+		// Keep the sequences only in packed form from here on
+		sequences = new PackedSequenceStore(re.data);
+		re.data = null;
+		System.err.println("Packed indexed sequences into " + sequences.bytes() + " bytes");
+		
+		if(clp.offHeap)
+		{
+			sequences.moveOffHeap();
+			if(compactIndex != null)
+			{
+				compactIndex.moveOffHeap();
+			}
+			System.err.println("Moved index and sequences off the heap");
+		}
+		long numKmers = 0;
+		long numBadKmers = 0;
+		if(compactIndex != null)
+		{
+			numKmers = compactIndex.size();
+			numBadKmers = compactIndex.numMasked;
+		}
+		else
+		{
+			for(HashMap<Integer, LongList> hm : kmerMap) numKmers += hm.size();
+			numBadKmers = badKmers.size();
+		}
 		System.err.println("Number of kmers: " + numKmers);
-		System.err.println("Bad kmers: " + badKmers.size());
+		System.err.println("Bad kmers: " + numBadKmers);
+		
+		if(clp.filterBits > 0)
+		{
+			buildFilter(numKmers, numBadKmers);
+			if(clp.offHeap)
+			{
+				filter.moveOffHeap();
+				if(maskedFilter != null) maskedFilter.moveOffHeap();
+			}
+			System.err.println("Built kmer filter using " + filter.bytes() + " bytes" + (clp.offHeap ? " off the heap" : ""));
+		}
 	}
 	
-	// Gets parameter information based on querying a sample of reads - used by ParameterLearner
-	double[][] getParamInfo(Read[] rs)
+	/*
+	 * Adds every kmer which has postings in the index to the filter, so masked kmers are rejected too,
+	 * and the masked kmers to a filter of their own
+	 */
+	void buildFilter(long numKmers, long numMasked)
 	{
-		int numReads = rs.length;
-		double[][] res = new double[numReads][];
-		for(int i = 0; i<numReads; i++)
+		filter = new BlockedBloomFilter(numKmers, clp.filterBits);
+		if(numMasked > 0)
 		{
-			Read r = rs[i];
-			long[] kmers = MerMaker.minimizers(r.s, k, w, clp.posStrandBits);
-			HashMap<Integer, ArrayList<Hit>> hits = getHits(r, kmers);
-			
-			int longestChain = 0;
-			
-			for(int readKey : hits.keySet())
+			maskedFilter = new BlockedBloomFilter(numMasked, clp.filterBits);
+		}
+		if(compactIndex != null)
+		{
+			for(long slot = 0; slot<compactIndex.keys.size(); slot++)
 			{
-				ArrayList<Hit> sharedKmers = hits.get(readKey);
-				
-				Collections.sort(sharedKmers);
-				
-				if(readKey % 2 != 0)
+				if(!compactIndex.masked(slot))
 				{
-					Collections.reverse(sharedKmers);
+					filter.add(compactIndex.keys.get(slot));
 				}
-				
-				int[] matchChain = lis(r.s.length(), sharedKmers, readKey % 2 == 0, 0);
-
-				if(matchChain.length > longestChain)
+				else
 				{
-					longestChain = matchChain.length;
+					maskedFilter.add(compactIndex.keys.get(slot));
 				}
 			}
-			res[i] = new double[] {longestChain * 1.0 / kmers.length};
 		}
-		return res;
+		else
+		{
+			for(int i = 0; i<kmerMap.length; i++)
+			{
+				for(int key : kmerMap[i].keySet())
+				{
+					filter.add(((long)key << clp.logNumMaps) | i);
+				}
+			}
+			for(long key : badKmers)
+			{
+				maskedFilter.add(key);
+			}
+		}
+	}
+	
+	/*
+	 * How often the filter answered lookups on its own, and how often it let through a kmer not in the index
+	 */
+	String filterStats()
+	{
+		long lookups = filterLookups.sum();
+		long rejected = filterRejected.sum();
+		long falsePositives = filterFalsePositives.sum();
+		return String.format("Kmer filter: %d lookups, %d rejected (%.2f%%), false positive rate %.4f%%",
+				lookups, rejected, 100.0 * rejected / Math.max(1, lookups),
+				100.0 * falsePositives / Math.max(1, rejected + falsePositives));
+	}
+	
+	/*
+	 * Gets parameter information based on querying a sample of reads - used by ParameterLearner
+	 * Fills in the parameter information of reads from through to-1 of the sample, spread over numThreads threads
+	 */
+	void getParamInfo(Read[] rs, int from, int to, double[][] res, int numThreads)
+	{
+		AtomicInteger nextRead = new AtomicInteger(from);
+		ParamInfoThread[] threads = new ParamInfoThread[Math.max(1, Math.min(numThreads, to - from))];
+		for(int i = 0; i<threads.length; i++)
+		{
+			threads[i] = new ParamInfoThread(rs, to, res, nextRead);
+			threads[i].start();
+		}
+		CompactIndex.join(threads);
+	}
+	
+	class ParamInfoThread extends Thread
+	{
+		Read[] rs;
+		int to;
+		double[][] res;
+		AtomicInteger nextRead;
+		ParamInfoThread(Read[] rs, int to, double[][] res, AtomicInteger nextRead)
+		{
+			this.rs = rs;
+			this.to = to;
+			this.res = res;
+			this.nextRead = nextRead;
+		}
+		public void run()
+		{
+			int i;
+			while((i = nextRead.getAndIncrement()) < to)
+			{
+				res[i] = getParamInfo(rs[i]);
+			}
+		}
+	}
+	
+	/*
+	 * The proportion of a read's minimizers in its longest chain of kmer matches against any indexed read
+	 */
+	double[] getParamInfo(Read r)
+	{
+		MerMaker.MinimizerEngine minimizers = MerMaker.engine();
+		int numMinimizers = minimizers.compute(r.s, k, w, clp.posStrandBits);
+		HitBuffer hits = getHits(r, minimizers.out, numMinimizers);
+		
+		int longestChain = 0;
+		
+		for(int run = 0; run<hits.numRuns; run++)
+		{
+			int readKey = hits.runKey[run];
+			
+			int[] matchChain = lis(r.s.length(), hits, hits.start(run), hits.end(run), readKey % 2 == 0, 0);
+
+			if(matchChain.length > longestChain)
+			{
+				longestChain = matchChain.length;
+			}
+		}
+		return new double[] {longestChain * 1.0 / numMinimizers};
 	}
 	
 	
 	boolean contains(Read r, Logger logger) throws InterruptedException, IOException
+	{
+		boolean res = contains(r, logger, clp.topCandidates, true);
+		
+		// Compare against checking every candidate, to see how often limiting them changes the answer
+		// This second check is left out of the metrics, which count each read once
+		if(clp.checkTopCandidates && clp.topCandidates > 0 && r.s.length() >= clp.minLength)
+		{
+			boolean all;
+			Metrics.pause(true);
+			try
+			{
+				all = contains(r, null, 0, false);
+			}
+			finally
+			{
+				Metrics.pause(false);
+			}
+			topCandidatesChecked.increment();
+			if(all != res)
+			{
+				topCandidatesChanged.increment();
+			}
+		}
+		return res;
+	}
+	
+	/*
+	 * Checks a read for containment, chaining only the maxCandidates candidates with the most hits if it is positive
+	 * The counts of containing reads are only updated if record is set
+	 */
+	boolean contains(Read r, Logger logger, int maxCandidates, boolean record) throws InterruptedException, IOException
+	{
+		Metrics.queries.increment();
+		long startTime = System.nanoTime();
+		boolean res = checkContainment(r, logger, maxCandidates, record);
+		Metrics.queryNanos.add(System.nanoTime() - startTime);
+		return res;
+	}
+	
+	boolean checkContainment(Read r, Logger logger, int maxCandidates, boolean record) throws InterruptedException, IOException
 	{
 		Logger.LogElement le = new Logger.LogElement();
 		double threshold = clp.p;
@@ -97,21 +319,28 @@ public class ReadIndex {
 		int readLength = r.s.length();
 		if(readLength < clp.minLength)
 		{
+			if(record)
+			{
+				Metrics.containedByLength.increment();
+			}
 			return true;
 		}
 		
 		// Kmerize the query read
-		long[] kmers = MerMaker.minimizers(r.s, k, w, clp.posStrandBits);
-		int numMinimizers = kmers.length;
+		long startTime = System.nanoTime();
+		MerMaker.MinimizerEngine minimizers = MerMaker.engine();
+		int numMinimizers = minimizers.compute(r.s, k, w, clp.posStrandBits);
+		Metrics.minimizers.add(numMinimizers);
+		Metrics.minimizerNanos.add(System.nanoTime() - startTime);
 		
-		// Get all kmer matches against any database reads
-		HashMap<Integer, ArrayList<Hit>> hits = getHits(r, kmers);
+		// Get all kmer matches against any database reads, grouped into one run per candidate
+		HitBuffer hits = getHits(r, minimizers.out, numMinimizers);
 		
 		// Initialize logging information
-		le.numCandidates = hits.keySet().size();
+		le.numCandidates = hits.numRuns;
 		le.readName = r.n;
 		le.readLength = r.s.length();
-		le.numMinimizers = kmers.length;
+		le.numMinimizers = numMinimizers;
 		le.longestChain = -1;
 		le.leftEnd = -le.readLength;
 		le.rightEnd = -le.readLength;
@@ -122,48 +351,41 @@ public class ReadIndex {
 		le.ctScore = 0.0;
 		
 		int bestKey = -1;
+		boolean containedByChain = false;
+		
+		// Candidates (by run) in order of how close their chains get to the ends of the query
+		TreeMap<Integer, ArrayList<Integer>> scoreToRun = new TreeMap<>();
+		
+		// The chain found for each candidate, so it does not need to be recomputed when aligning
+		int[][] chains = new int[hits.numRuns][];
 		
-		TreeMap<Integer, ArrayList<Integer>> scoreToKey = new TreeMap<>();
+		// Candidates with too few hits to form a long enough chain or too short to contain the query are left out
+		int[] candidates = candidateRuns(hits, readLength, threshold * numMinimizers, maxCandidates);
+		Metrics.candidates.add(hits.numRuns);
+		Metrics.candidatesChained.add(candidates.length);
 		
-		for(int readKey : hits.keySet())
+		for(int run : candidates)
 		{
-			ArrayList<Hit> sharedKmers = hits.get(readKey);
-			
-			// If there are too few hits to possibly form a long enough chain, ignore
-			if(sharedKmers.size() < threshold * numMinimizers)
-			{
-				continue;
-			}
+			int readKey = hits.runKey[run];
 			
 			// Get the read index and strand
 			int readIndex = readKey / 2;
 			int theirStrand = readKey % 2;
-
-			// If the database read is too short to possibly contain the query, ignore
-			if(readLength >= data[readIndex].s.length())
-			{
-				continue;
-			}
-			
-			// Sort matches by their position in query read
-			Collections.sort(sharedKmers);
-			if(theirStrand != 0)
-			{
-				Collections.reverse(sharedKmers);
-			}
 			
 			// Get matches which form longest subsequence of increasing positions in database read
-			int[] matchChain = lis(r.s.length(), sharedKmers, theirStrand == 0, threshold);
+			// The hits in the run are already sorted by position in the query read
+			int[] matchChain = lis(r.s.length(), hits, hits.start(run), hits.end(run), theirStrand == 0, threshold);
+			chains[run] = matchChain;
 			
 			// Store how close this chain gets to end of query - 
 			//   to be used when selecting which alignments to investigate further
-			int[] endLengths = getUnalignedEnds(sharedKmers, matchChain, r.s.length());
+			int[] endLengths = getUnalignedEnds(hits, matchChain, r.s.length());
 			int maxEnd = Math.max(endLengths[0], endLengths[1]);
-			if(!scoreToKey.containsKey(maxEnd))
+			if(!scoreToRun.containsKey(maxEnd))
 			{
-				scoreToKey.put(maxEnd, new ArrayList<>());
+				scoreToRun.put(maxEnd, new ArrayList<>());
 			}
-			scoreToKey.get(maxEnd).add(readKey);
+			scoreToRun.get(maxEnd).add(run);
 			
 			int oldMax = Math.max(le.leftEnd, le.rightEnd);
 			if(oldMax < 0) oldMax = le.readLength + 1;
@@ -180,21 +402,29 @@ public class ReadIndex {
 				le.containingName = longReadNames.get(readKey/2);
 				for(int i = 0; i<le.chain.length; i++)
 				{
-					le.chain[i] = sharedKmers.get(matchChain[i]).myIndex;
-					le.theirChain[i] = sharedKmers.get(matchChain[i]).rp.p;
+					le.chain[i] = hits.myPos(matchChain[i]);
+					le.theirChain[i] = hits.theirPos[matchChain[i]];
 				}
 			}
 			
 			// Check if the chain length/proximity to ends is good enough to call this contained
 			// Don't do this if querying a database read since we want to be more careful about removing longer reads
 			boolean chainContaining = r.s.length() < lengthThreshold &&
-					chainContaining(sharedKmers, matchChain, numMinimizers, r.s.length(), threshold, endLength);
+					chainContaining(hits, matchChain, numMinimizers, r.s.length(), threshold, endLength);
 			
 			// If it is contained, return true (or mark and keep going if logging results)
 			if(chainContaining)
 			{
-				countContaining[readIndex]++;
-				if(verbose)
+				if(record)
+				{
+					countContaining[readIndex]++;
+					if(!containedByChain)
+					{
+						Metrics.containedByChain.increment();
+					}
+				}
+				containedByChain = true;
+				if(verbose && record)
 				{
 					System.err.println("Read " + r.i + " contained by long read " + readIndex + " on strand " + theirStrand);
 				}
@@ -215,8 +445,8 @@ public class ReadIndex {
 						le.containingName = longReadNames.get(readKey/2);
 						for(int i = 0; i<le.chain.length; i++)
 						{
-							le.chain[i] = sharedKmers.get(matchChain[i]).myIndex;
-							le.theirChain[i] = sharedKmers.get(matchChain[i]).rp.p;
+							le.chain[i] = hits.myPos(matchChain[i]);
+							le.theirChain[i] = hits.theirPos[matchChain[i]];
 						}
 						le.contained = true;
 					}
@@ -232,19 +462,18 @@ public class ReadIndex {
 		if(bestKey != -1 && (logger == null || !le.contained))
 		{
 			boolean found = false;
-			while(!found && attempts < clp.maxAttempts && (last == -1 || scoreToKey.higherKey(last) != null))
+			while(!found && attempts < clp.maxAttempts && (last == -1 || scoreToRun.higherKey(last) != null))
 			{
-				int curScore = last == -1 ? scoreToKey.firstKey() : scoreToKey.higherKey(last);
+				int curScore = last == -1 ? scoreToRun.firstKey() : scoreToRun.higherKey(last);
 				last = curScore;
-				ArrayList<Integer> keys = scoreToKey.get(curScore);
-				for(int i = 0; i<keys.size() && attempts < clp.maxAttempts && !found; i++, attempts++)
+				ArrayList<Integer> runs = scoreToRun.get(curScore);
+				for(int i = 0; i<runs.size() && attempts < clp.maxAttempts && !found; i++, attempts++)
 				{
-					int curKey = keys.get(i);
-					ArrayList<Hit> sharedKmers = hits.get(curKey);
-					int theirStrand = curKey % 2;
-					le.dpNames.add(data[curKey/2].n);
-					int[] matchChain = lis(r.s.length(), sharedKmers, theirStrand == 0, threshold);
-					int[] endLengths = getUnalignedEnds(sharedKmers, matchChain, r.s.length());
+					int run = runs.get(i);
+					int curKey = hits.runKey[run];
+					le.dpNames.add(longReadNames.get(curKey/2));
+					int[] matchChain = chains[run];
+					int[] endLengths = getUnalignedEnds(hits, matchChain, r.s.length());
 					
 					// If this is a database read, add extra end length criteria
 					if(r.s.length() >= lengthThreshold && endLength * 5 < Math.max(endLengths[0], endLengths[1]))
@@ -253,12 +482,16 @@ public class ReadIndex {
 					}
 					
 					// Get alignment score and return true if high enough
-					double score = dpa.dpContains(data[sharedKmers.get(0).rp.rs/2], k, r, sharedKmers, matchChain, 
+					double score = dpa.dpContains(sequences, curKey/2, k, r, hits, matchChain, 
 							matchChain.length < threshold * numMinimizers || r.s.length() >= lengthThreshold);
 					le.ctScore = Math.max(le.ctScore, score);
 					if(score > clp.dpCutoff)
 					{
-						countContaining[curKey/2]++;
+						if(record)
+						{
+							countContaining[curKey/2]++;
+							Metrics.containedByDp.increment();
+						}
 						found = true;
 						if(logger != null)
 						{
@@ -271,49 +504,214 @@ public class ReadIndex {
 		}
 		if(logger != null)
 		{
-			logger.data.add(le);
+			logger.add(le);
 			return le.contained;
 		}
 		return false;
 	}
-	HashMap<Integer, ArrayList<Hit>> getHits(Read r, long[] kmers)
+	
+	/*
+	 * The runs of the candidates which have at least minHits hits and are longer than the query
+	 * If maxCandidates is positive, only that many of them with the most hits are kept, best first,
+	 * using a min-heap of (hits, run) so the weakest kept candidate is always at the top
+	 * Otherwise every candidate is kept, in the order of the runs
+	 */
+	int[] candidateRuns(HitBuffer hits, int readLength, double minHits, int maxCandidates)
 	{
-		HashMap<Integer, ArrayList<Hit>> hits = new HashMap<>();
-		for(long miniKmer : kmers)
+		long[] heap = hits.heap(maxCandidates > 0 ? Math.min(maxCandidates, hits.numRuns) : hits.numRuns);
+		int size = 0, eligible = 0;
+		for(int run = 0; run<hits.numRuns; run++)
 		{
+			int votes = hits.length(run);
+			if(votes < minHits || readLength >= sequences.length(hits.runKey[run] / 2))
+			{
+				continue;
+			}
+			eligible++;
+			if(maxCandidates <= 0)
+			{
+				heap[size++] = run;
+				continue;
+			}
+			
+			// Ties go to the earlier run, so the selection does not depend on the order of the heap
+			long entry = ((long)votes << 32) | (Integer.MAX_VALUE - run);
+			if(size < maxCandidates)
+			{
+				int i = size++;
+				while(i > 0 && heap[(i-1)/2] > entry)
+				{
+					heap[i] = heap[(i-1)/2];
+					i = (i-1)/2;
+				}
+				heap[i] = entry;
+			}
+			else if(entry > heap[0])
+			{
+				siftDown(heap, size, entry);
+			}
+		}
+		
+		int[] res = new int[size];
+		if(maxCandidates <= 0)
+		{
+			for(int i = 0; i<size; i++) res[i] = (int)heap[i];
+			return res;
+		}
+		if(size < eligible)
+		{
+			candidatesDropped.add(eligible - size);
+		}
+		Arrays.sort(heap, 0, size);
+		for(int i = 0; i<size; i++)
+		{
+			res[i] = Integer.MAX_VALUE - (int)(heap[size-1-i] & 0xffffffffL);
+		}
+		return res;
+	}
+	
+	/*
+	 * Replaces the top of a min-heap of the given size with entry and restores the heap order
+	 */
+	static void siftDown(long[] heap, int size, long entry)
+	{
+		int i = 0;
+		while(true)
+		{
+			int child = 2*i + 1;
+			if(child >= size) break;
+			if(child + 1 < size && heap[child+1] < heap[child]) child++;
+			if(heap[child] >= entry) break;
+			heap[i] = heap[child];
+			i = child;
+		}
+		heap[i] = entry;
+	}
+	
+	/*
+	 * How many candidates were left out by the limit, and how often it changed whether a read was contained
+	 */
+	String candidateStats()
+	{
+		String res = "Candidate limit of " + clp.topCandidates + ": " + candidatesDropped.sum() + " candidates not chained";
+		if(clp.checkTopCandidates)
+		{
+			long checked = topCandidatesChecked.sum();
+			long changed = topCandidatesChanged.sum();
+			res += String.format(", decision changed for %d of %d reads checked (%.2f%%)",
+					changed, checked, 100.0 * changed / Math.max(1, checked));
+		}
+		return res;
+	}
+	
+	/*
+	 * Whether a kmer is in the index but masked as too frequent
+	 */
+	boolean masked(long kmer)
+	{
+		if(compactIndex != null)
+		{
+			long slot = compactIndex.find(kmer);
+			return slot >= 0 && compactIndex.masked(slot);
+		}
+		return badKmers.contains(kmer);
+	}
+	
+	/*
+	 * Finds every match between the query's minimizers and the index, and groups them by candidate
+	 * The buffer returned belongs to the calling thread and is reused by its next query
+	 */
+	HitBuffer getHits(Read r, long[] kmers, int numKmers)
+	{
+		long startTime = System.nanoTime();
+		HitBuffer hits = HitBuffer.buffer();
+		hits.clear();
+		int rejected = 0, falsePositives = 0, masked = 0;
+		for(int kmerIndex = 0; kmerIndex<numKmers; kmerIndex++)
+		{
+			long miniKmer = kmers[kmerIndex];
 			int strand = (int)(miniKmer&1);
 			int i = ((int) (miniKmer & ((1L << (clp.posStrandBits)) - 1))) >> 1;
 			long kmer = miniKmer >> clp.posStrandBits;
-			if(badKmers.contains(kmer)) continue;
-			LongList currentHits = kmerMap[(int)(kmer&((1<<clp.logNumMaps)-1))].get((int)(kmer>>clp.logNumMaps));
-			if(currentHits == null) continue;
-			for(int hitIndex = 0; hitIndex<currentHits.size; hitIndex++)
+			if(filter != null && !filter.mightContain(kmer))
 			{
-				ReadPosition rp = ReadPosition.decode(currentHits.a[hitIndex]);
-				if(rp.rs%2 != strand) rp.rs |= 1;
-				else if(rp.rs%2 == 1) rp.rs--;
-				int readKey = rp.rs;
-				if(!hits.containsKey(readKey))
+				rejected++;
+				
+				// Count masked kmers the same way whether or not the filter is used
+				if(maskedFilter != null && maskedFilter.mightContain(kmer) && masked(kmer))
 				{
-					hits.put(readKey, new ArrayList<>());
+					masked++;
+				}
+				continue;
+			}
+			if(compactIndex != null)
+			{
+				long slot = compactIndex.find(kmer);
+				if(slot < 0 || compactIndex.masked(slot))
+				{
+					if(slot >= 0) masked++;
+					falsePositives++;
+					continue;
+				}
+				hits.addPostings(compactIndex.postings, compactIndex.start(slot), compactIndex.end(slot), strand, i);
+			}
+			else
+			{
+				if(badKmers.contains(kmer))
+				{
+					masked++;
+					falsePositives++;
+					continue;
+				}
+				LongList currentHits = kmerMap[(int)(kmer&((1<<clp.logNumMaps)-1))].get((int)(kmer>>clp.logNumMaps));
+				if(currentHits == null)
+				{
+					falsePositives++;
+					continue;
+				}
+				for(int hitIndex = 0; hitIndex<currentHits.size; hitIndex++)
+				{
+					addHit(hits, currentHits.a[hitIndex], strand, i);
 				}
-				hits.get(readKey).add(new Hit(rp, i));
 			}
 		}
+		if(filter != null)
+		{
+			filterLookups.add(numKmers);
+			filterRejected.add(rejected);
+			filterFalsePositives.add(falsePositives);
+		}
+		hits.sort();
+		Metrics.indexProbes.add(numKmers - rejected);
+		Metrics.maskedSkipped.add(masked);
+		Metrics.hits.add(hits.size);
+		Metrics.hitNanos.add(System.nanoTime() - startTime);
 		return hits;
 	}
-	int[] getUnalignedEnds(ArrayList<Hit> sharedKmers, int[] matchChain, int readLength)
+	
+	/*
+	 * Adds a hit from an encoded ReadPosition without decoding it into an object
+	 * The candidate's strand bit is set when the kmer is on different strands in the two reads
+	 */
+	void addHit(HitBuffer hits, long posting, int strand, int myIndex)
+	{
+		int rs = (int)(posting & ((1<<30) - 1));
+		int p = (int)(posting >> 30);
+		int readKey = (rs & ~1) | ((rs ^ strand) & 1);
+		hits.add(readKey, p, myIndex);
+	}
+	int[] getUnalignedEnds(HitBuffer hits, int[] matchChain, int readLength)
 	{
 		int leftEnd = readLength, rightEnd = readLength;
 		for(int index : matchChain)
 		{
-			Hit h = sharedKmers.get(index);
-			leftEnd = Math.min(leftEnd, h.myIndex);
-			rightEnd = Math.min(rightEnd, readLength - k - h.myIndex);
+			int myIndex = hits.myPos(index);
+			leftEnd = Math.min(leftEnd, myIndex);
+			rightEnd = Math.min(rightEnd, readLength - k - myIndex);
 		}
 		return new int[] {leftEnd, rightEnd};
 	}
-	boolean chainContaining(ArrayList<Hit> sharedKmers, int[] matchChain, int numMinimizers, int readLength, double threshold, int endLength)
+	boolean chainContaining(HitBuffer hits, int[] matchChain, int numMinimizers, int readLength, double threshold, int endLength)
 	{
 		int countLeftEnd = 0, countRightEnd = 0;
 		int totalMatches = matchChain.length;
@@ -323,62 +721,81 @@ public class ReadIndex {
 		}
 		for(int index : matchChain)
 		{
-			Hit cur = sharedKmers.get(index);
-			if(cur.myIndex < endLength) countLeftEnd++;
-			if(cur.myIndex + k + endLength > readLength) countRightEnd++;
+			int myIndex = hits.myPos(index);
+			if(myIndex < endLength) countLeftEnd++;
+			if(myIndex + k + endLength > readLength) countRightEnd++;
 		}
 		if(countLeftEnd == 0 || countRightEnd == 0) return false;
 		
 		return true;
 	}
-	// Gets the sequence of indices in the longest increasing subsequence
-	// Kmers near the end count as 5 matches
-	int[] lis(int readLength, ArrayList<Hit> sharedKmers, boolean increasing, double threshold)
+	
+	/*
+	 * Finds the highest-scoring chain of the hits from start to end-1 which are consistent with an
+	 * alignment between the two reads, and returns their indices in the buffer
+	 * Hits must be sorted by position in the query (in reverse for the other strand), so the distance
+	 * in the query only grows when looking back - once it is too far to satisfy the jump limit for
+	 * this threshold, no earlier hit can be chained and the scan stops
+	 * The scan back is also capped at clp.chainLookback hits for very repetitive pairs of reads
+	 */
+	int[] lis(int readLength, HitBuffer hits, int start, int end, boolean increasing, double threshold)
 	{
-		int n = sharedKmers.size();
+		long startTime = System.nanoTime();
+		int n = end - start;
 		int[] maxVal = new int[n];
 		int[] backPointer = new int[n];
+		long[] keys = hits.keys;
+		int[] theirIndex = hits.theirPos;
+		int lookback = clp.chainLookback > 0 ? clp.chainLookback : n;
 		int bestEnd = 0;
 		for(int i = 0; i<n; i++)
 		{
-			Hit cur = sharedKmers.get(i);
+			int curMine = (int)keys[start + i], curTheirs = theirIndex[start + i];
 			int currentVal = 1;
-			if(cur.myIndex < clp.el || cur.myIndex + clp.el + k > readLength)
+			if(curMine < clp.el || curMine + clp.el + k > readLength)
 			{
 				currentVal = 5;
 			}
 			maxVal[i] = currentVal;
 			backPointer[i] = -1;
-			for(int j = i-1; j>=0; j--)
+			int best = currentVal;
+			int stop = Math.max(0, i - lookback);
+			for(int j = i-1; j>=stop; j--)
 			{
-				Hit last = sharedKmers.get(j);
-				boolean validTransition = ((increasing && cur.rp.p > last.rp.p) || (!increasing && cur.rp.p < last.rp.p)) && (cur.myIndex != last.myIndex);
-				int myJump = Math.abs(cur.myIndex - last.myIndex);
-				int theirJump = Math.abs(cur.rp.p - last.rp.p);
-				validTransition &= theirJump >= .8 * myJump && theirJump <= 1.2 * myJump;
-				validTransition &= myJump * threshold < 25.0;
-				if(validTransition && maxVal[j] + currentVal > maxVal[i])
+				int myJump = Math.abs(curMine - (int)keys[start + j]);
+				if(myJump * threshold >= 25.0)
+				{
+					break;
+				}
+				int theirJump = increasing ? curTheirs - theirIndex[start + j] : theirIndex[start + j] - curTheirs;
+				if(myJump == 0 || theirJump <= 0 || theirJump < .8 * myJump || theirJump > 1.2 * myJump)
+				{
+					continue;
+				}
+				if(maxVal[j] + currentVal > best)
 				{
 					backPointer[i] = j;
-					maxVal[i] = maxVal[j] + currentVal;
+					best = maxVal[j] + currentVal;
 				}
 			}
+			maxVal[i] = best;
 			if(maxVal[i] > maxVal[bestEnd])
 			{
 				bestEnd = i;
 			}
 		}
-		ArrayList<Integer> indices = new ArrayList<>();
-		while(bestEnd != -1)
+		int length = 0;
+		for(int i = bestEnd; i != -1; i = backPointer[i])
 		{
-			indices.add(bestEnd);
-			bestEnd = backPointer[bestEnd];
+			length++;
 		}
-		int[] res = new int[indices.size()];
-		for(int i = 0; i<res.length; i++)
+		int[] res = new int[length];
+		for(int i = bestEnd; i != -1; i = backPointer[i])
 		{
-			res[i] = indices.get(indices.size()-1-i);
+			res[--length] = start + i;
 		}
+		Metrics.lisCalls.increment();
+		Metrics.lisNanos.add(System.nanoTime() - startTime);
 		return res;
 	}
 	void add(int index, Read cur)
@@ -403,7 +820,7 @@ public class ReadIndex {
 		HashMap<Integer, LongList> addingTo = kmerMap[(int)(fullKey & ((1<<clp.logNumMaps)-1))];
 		int key = (int)(fullKey >> clp.logNumMaps);
 		if(!addingTo.containsKey(key)) addingTo.put((int)key, new LongList());
-		if(addingTo.get(key).size >= 100)
+		if(addingTo.get(key).size >= clp.maxOccurrences)
 		{
 			addingTo.remove(key);
 			badKmers.add(fullKey);
@@ -411,18 +828,4 @@ public class ReadIndex {
 		}
 		addingTo.get(key).add(value.encode());
 	}
-	class Hit implements Comparable<Hit>
-	{
-		ReadPosition rp;
-		int myIndex;
-		Hit(ReadPosition readPos, int index)
-		{
-			rp = readPos;
-			myIndex = index;
-		}
-		@Override
-		public int compareTo(Hit o) {
-			return myIndex - o.myIndex;
-		}
-	}
 }
@@ -3,171 +3,307 @@
  * The length threshold is calculated such that the longest <prop> percent of reads are longer than it
  * In addition, this class allows reading the file either one read at a time or skipping large reads
  * 
+ * The threshold, the long reads and a sample of the short reads used for learning parameters
+ * all come from a single scan of the file:
+ *   - Read lengths go into a histogram, from which the threshold is computed at the end
+ *   - Reads which are long enough to possibly end up above the final threshold are kept as they go by,
+ *     with the cutoff for keeping them raised as more of the file is seen
+ *   - A reservoir sample is taken over all reads, and only the short ones are kept at the end
+ * If a read which was dropped turns out to be above the final threshold, the file is read once more
+ * to collect the long reads
+ * When the threshold is already known (from a saved IndexFile), the scan just collects the reads above it
+ * In the sharded mode the long reads are not kept by the scan at all, and are instead read back
+ * a shard at a time, each shard being as many of them in file order as fit in a number of bases
  */
 
 package hydroplane;
 
-import java.io.File;
 import java.io.IOException;
-import java.io.PrintWriter;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.Scanner;
+import java.util.Arrays;
+import java.util.Random;
 
 public class ReadLengthSeparator {
+	// How many times more reads than the current estimate of the index size are kept during the scan
+	static final double RETAIN_SLACK = 2.0;
+	
 	ReadReader rr;
 	Read[] data;
 	int lengthThreshold;
 	int n;
 	String fn;
 	Read[] sample;
-	@SuppressWarnings("resource")
-	ReadLengthSeparator(String fn, double prop, Timer timer, String readSplitScript) throws IOException, InterruptedException
+	
+	// Whether the scan keeps the long reads in data, which it does unless they are to be read in shards
+	boolean keepLongReads;
+	
+	// Whether the qualities of reads from a FASTQ file are kept, so they can be written to the output
+	boolean keepQualities;
+	
+	// Reads through the file for the long reads of the next shard, and the first long read which did not fit in the last one
+	ReadReader shardReader;
+	Read pendingLongRead;
+	
+	ReadLengthSeparator(String fn, double prop, int sampleSize, Timer timer) throws IOException
+	{
+		this(fn, prop, sampleSize, -1, timer);
+	}
+	
+	ReadLengthSeparator(String fn, double prop, int sampleSize, int knownThreshold, Timer timer) throws IOException
+	{
+		this(fn, prop, sampleSize, knownThreshold, true, timer);
+	}
+	
+	/*
+	 * Separates reads using a previously computed length threshold, or computes one if knownThreshold is negative
+	 * If keepLongReads is false, data is left empty and the long reads are read with nextLongReads instead
+	 */
+	ReadLengthSeparator(String fn, double prop, int sampleSize, int knownThreshold, boolean keepLongReads, Timer timer) throws IOException
+	{
+		this(fn, prop, sampleSize, knownThreshold, keepLongReads, false, timer);
+	}
+	
+	/*
+	 * Also keeps the qualities of the reads returned by getNextRead, if keepQualities is set
+	 */
+	ReadLengthSeparator(String fn, double prop, int sampleSize, int knownThreshold, boolean keepLongReads, boolean keepQualities,
+			Timer timer) throws IOException
 	{
 		this.fn = fn;
+		this.keepLongReads = keepLongReads;
+		this.keepQualities = keepQualities;
 		n = 0;
-		System.out.println(readSplitScript);
-		if(readSplitScript == null || !(new File(readSplitScript)).exists())
+		if(knownThreshold < 0)
 		{
 			System.err.println("Calculating length threshold");
-			lengthThreshold = getLengthThreshold(new ReadReader(fn), prop);
-			System.err.println("Building index with reads having length at least: " + lengthThreshold);
-			System.err.println(timer.time());
-			rr = new ReadReader(fn);
-			fillDataFromReadReader();
-		}
-		else
-		{
-			try 
-			{
-				String command = readSplitScript + " " + fn + " " + prop + " " + 5000;
-				System.err.println("Running script to split reads: " + command);
-				// TODO get output from command
-				Runtime rt = Runtime.getRuntime();
-				Process pr = rt.exec(command);
-				Scanner prReader = new Scanner(pr.getInputStream()); 
-				HashMap<String, String> prOutput = new HashMap<>();
-				while (prReader.hasNext()) 
-				{
-					String line = prReader.nextLine();
-					System.out.println(line);
-					String[] tokens = line.split(" ");
-					if(tokens.length != 2 || !tokens[0].endsWith(":")) continue;
-					String key = tokens[0].substring(0, tokens[0].length()-1);
-					String val = tokens[1];
-					prOutput.put(key, val);
-				}
-				int retVal = pr.waitFor();
-				if(retVal != 0)
-				{
-					System.err.println("Read splitting failed");
-				}
-				
-				lengthThreshold = Integer.parseInt(prOutput.get("LengthCutoff"));
-				
-				System.err.println("Done splitting reads " + timer.time());
-				rr = new ReadReader(fn + ".long");
-				fillDataFromReadReader();
-				n = Integer.parseInt(prOutput.get("NumReads"));
-				
-				if(prOutput.containsKey("SampleFile"))
-				{
-					ReadReader sampleReader = new ReadReader(prOutput.get("SampleFile"));
-					sample = sampleReader.getAllReads();
-				}
-			} 
-			catch(Exception e) 
-			{
-				System.err.println("Calculating length threshold");
-				lengthThreshold = getLengthThreshold(new ReadReader(fn), prop);
-				System.err.println("Building index with reads having length at least: " + lengthThreshold);
-				System.err.println(timer.time());
-				rr = new ReadReader(fn);
-				fillDataFromReadReader();
-			};
 		}
+		scan(prop, sampleSize, knownThreshold);
+		System.err.println("Building index with reads having length at least: " + lengthThreshold);
+		System.err.println(timer.time());
 		rr = new ReadReader(fn);
+		rr.keepQualities = keepQualities;
 	}
-	void fillDataFromReadReader()
+	
+	/*
+	 * Computes the length threshold, the long reads and the sample in one pass over the file
+	 */
+	void scan(double prop, int sampleSize, int knownThreshold) throws IOException
 	{
-		ArrayList<Read> res = new ArrayList<>();
-		while(rr.hasNext())
+		boolean thresholdKnown = knownThreshold >= 0;
+		ReadReader scanner = new ReadReader(fn);
+		int[] lengthCounts = new int[1024];
+		int maxLength = 0;
+		
+		// Reads at least retainCutoff long are kept, and maxDropped is the longest read which was not
+		ArrayList<Read> retained = new ArrayList<>();
+		int retainCutoff = !keepLongReads ? Integer.MAX_VALUE : thresholdKnown ? knownThreshold : 0;
+		int retainLimit = 1024;
+		int maxDropped = -1;
+		
+		// The reservoir is a little larger than the sample since long reads will be removed from it
+		Random rand = new Random(0);
+		Read[] reservoir = new Read[sampleSize + (int)(RETAIN_SLACK * prop * sampleSize) + 16];
+		int reservoirSize = 0;
+		
+		while(scanner.hasNext())
 		{
-			Read r = getNextRead();
-			if(r == null)
+			String name = scanner.getNextName();
+			int length = scanner.readNextSequence();
+			if(length < 0)
 			{
 				break;
 			}
-			if(r.s.length() >= lengthThreshold)
+			int index = n++;
+			
+			if(length >= lengthCounts.length)
+			{
+				lengthCounts = Arrays.copyOf(lengthCounts, Math.max(length + 1, lengthCounts.length * 2));
+			}
+			lengthCounts[length]++;
+			maxLength = Math.max(maxLength, length);
+			
+			boolean keep = length >= retainCutoff;
+			int reservoirIndex = -1;
+			if(reservoirSize < reservoir.length)
+			{
+				reservoirIndex = reservoirSize++;
+			}
+			else
+			{
+				int r = rand.nextInt(n);
+				if(r < reservoir.length) reservoirIndex = r;
+			}
+			
+			if(keep || reservoirIndex != -1)
+			{
+				Read r = new Read(name, scanner.sequenceString(), index);
+				if(keep) retained.add(r);
+				if(reservoirIndex != -1) reservoir[reservoirIndex] = r;
+			}
+			if(!keep)
+			{
+				maxDropped = Math.max(maxDropped, length);
+			}
+			
+			// Once too many reads have been kept, raise the cutoff based on the lengths seen so far
+			if(!thresholdKnown && retained.size() > retainLimit)
+			{
+				retainCutoff = cutoff(lengthCounts, maxLength, Math.max(1, (int)(RETAIN_SLACK * prop * n)));
+				int kept = 0;
+				for(Read r : retained)
+				{
+					if(r.s.length() >= retainCutoff) retained.set(kept++, r);
+					else maxDropped = Math.max(maxDropped, r.s.length());
+				}
+				retained.subList(kept, retained.size()).clear();
+				retainLimit = 2 * kept + 1024;
+			}
+		}
+		System.err.println(scanner.throughput());
+		
+		int keepReads = (int)(prop * n);
+		if(thresholdKnown)
+		{
+			lengthThreshold = knownThreshold;
+		}
+		else
+		{
+			lengthThreshold = keepReads == 0 ? maxLength + 1 : cutoff(lengthCounts, maxLength, keepReads) + 1;
+		}
+		
+		if(keepLongReads && maxDropped >= lengthThreshold)
+		{
+			// Some long reads were dropped before the threshold was known, so collect them again
+			System.err.println("Rereading long reads since the length threshold was lower than expected");
+			retained.clear();
+			rr = new ReadReader(fn);
+			Read r;
+			while((r = getNextRead()) != null)
 			{
-				res.add(r);
+				if(r.s.length() >= lengthThreshold) retained.add(r);
 			}
 		}
-		Read[] toArray = new Read[res.size()];
-		for(int i = 0; i<res.size(); i++) toArray[i] = res.get(i);
-		data = toArray;
-		n = rr.readCount;
+		
+		ArrayList<Read> longReads = new ArrayList<>();
+		for(Read r : retained)
+		{
+			if(r.s.length() >= lengthThreshold) longReads.add(r);
+		}
+		data = longReads.toArray(new Read[0]);
+		
+		ArrayList<Read> shortReads = new ArrayList<>();
+		for(int i = 0; i<reservoirSize && shortReads.size() < sampleSize; i++)
+		{
+			if(reservoir[i].s.length() < lengthThreshold) shortReads.add(reservoir[i]);
+		}
+		sample = shortReads.toArray(new Read[0]);
 	}
-	Read nextShortRead()
+	
+	/*
+	 * The largest length such that at least count reads are at least that long
+	 */
+	static int cutoff(int[] lengthCounts, int maxLength, int count)
 	{
-		Read res = null;
-		while(rr.hasNext() && res == null)
+		int total = 0;
+		for(int length = maxLength; length > 0; length--)
 		{
-			Read r = getNextRead();
-			if(r.s.length() < lengthThreshold)
+			total += lengthCounts[length];
+			if(total >= count)
 			{
-				res = r;
+				return length;
 			}
 		}
-		return res;
+		return 0;
 	}
-	int getLengthThreshold(ReadReader rr, double p)
+	/*
+	 * The long reads of the next shard: the next ones in the file up to a total of maxBases bases,
+	 * but always at least one - an empty array once every long read has been returned
+	 */
+	Read[] nextLongReads(long maxBases) throws IOException
 	{
-		ArrayList<Integer> lengths = new ArrayList<>();
-		while(rr.hasNext())
+		if(shardReader == null)
 		{
-			rr.getNextName();
-			String read = rr.getNextRead();
-			lengths.add(read.length());
+			shardReader = new ReadReader(fn);
 		}
-		
-		Collections.sort(lengths);
-		int keepReads = (int) (p * lengths.size());
-		int cutoff = lengths.get(lengths.size() - keepReads) + 1;
-		return cutoff;
+		ArrayList<Read> res = new ArrayList<>();
+		long bases = 0;
+		while(true)
+		{
+			Read r = pendingLongRead;
+			pendingLongRead = null;
+			while(r == null && shardReader.hasNext())
+			{
+				String name = shardReader.getNextName();
+				int length = shardReader.readNextSequence();
+				if(length >= lengthThreshold)
+				{
+					r = new Read(name, shardReader.sequenceString(), shardReader.readCount-1);
+				}
+			}
+			if(r == null)
+			{
+				break;
+			}
+			if(res.size() > 0 && bases + r.s.length() > maxBases)
+			{
+				pendingLongRead = r;
+				break;
+			}
+			res.add(r);
+			bases += r.s.length();
+		}
+		return res.toArray(new Read[0]);
+	}
+	
+	/*
+	 * Goes back to the first shard of long reads
+	 */
+	void resetLongReads()
+	{
+		shardReader = null;
+		pendingLongRead = null;
 	}
+	
+	/*
+	 * The next read in the file, short or long, numbered by its position in the file
+	 */
 	Read getNextRead()
 	{
 		if(!rr.hasNext()) return null;
 		String name = rr.getNextName();
 		String read = rr.getNextRead();
-		return new Read(name, read, rr.readCount-1);
+		Read r = new Read(name, read, rr.readCount-1);
+		r.q = rr.qualityString();
+		return r;
 	}
-	void printUncontainedReads(boolean[] contained, String ofn) throws IOException
+	void printUncontainedReads(boolean[] contained, String ofn, boolean fastq, int compressionThreads) throws IOException, InterruptedException
 	{
-		long totalLen = 0, uncontainedLen = 0;
-		int numReads = 0, numUncontained = 0;
-		PrintWriter out = new PrintWriter(new File(ofn));
-		rr = new ReadReader(fn);
+		printUncontainedReads(fn, contained, ofn, fastq, compressionThreads);
+	}
+	
+	/*
+	 * Writes the reads in a file which are not marked as contained to ofn, after they have all been checked
+	 */
+	static void printUncontainedReads(String fn, boolean[] contained, String ofn, boolean fastq, int compressionThreads)
+			throws IOException, InterruptedException
+	{
+		long totalLen = 0;
+		int numReads = 0;
+		ReadWriter out = new ReadWriter(ofn, fastq, compressionThreads, 1);
+		ReadReader rr = new ReadReader(fn);
+		rr.keepQualities = fastq;
 		int idx = 0;
 		while(rr.hasNext())
 		{
-			Read r = getNextRead();
+			Read r = new Read(rr.getNextName(), rr.getNextRead(), idx);
+			r.q = rr.qualityString();
 			totalLen += r.s.length();
 			numReads++;
-			if(!contained[idx])
-			{
-				uncontainedLen += r.s.length();
-				numUncontained++;
-				out.println(">"+r.n);
-				out.println(r.s);
-			}
+			out.put(idx, contained[idx] ? new Read[0] : new Read[] {r});
 			idx++;
 		}
-		out.close();
-		
-		System.err.printf("Kept %d out of %d reads (%.2f%%)\n", numUncontained, numReads, 100.0 * numUncontained / numReads);
-		System.err.printf("Kept %d out of %d bases (%.2f%%)\n", uncontainedLen, totalLen, 100.0 * uncontainedLen / totalLen);
+		out.close(idx);
+		System.err.println(rr.throughput());
+		out.printSummary(numReads, totalLen);
 	}
 }
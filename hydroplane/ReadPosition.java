@@ -31,4 +31,8 @@ public class ReadPosition implements Comparable<ReadPosition>
 	{
 		return ((long)p << 30) + rs;
 	}
+	static long encode(int readIndex, int readPos, int strand)
+	{
+		return ((long)readPos << 30) + readIndex * 2 + strand;
+	}
 }
@@ -1,95 +1,371 @@
 /*
  * A class which facilitates reading genomic read data from either a FASTA or FASTQ file
+ * The file is read through a FileChannel into a large direct buffer, and record boundaries are
+ * found by scanning the raw bytes, so no String is built for anything other than names and sequences
+ * Gzipped input is detected automatically, and BGZF input is decompressed in parallel
  */
 
 package hydroplane;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.GZIPInputStream;
 
 public class ReadReader {
-	Scanner input;
-	String last;
+	static final int BUFFER_SIZE = 1 << 23;
+	
+	// The number of threads used to inflate BGZF blocks
+	static int decompressionThreads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+	ReadableByteChannel channel;
+	ByteBuffer buf;
+	boolean eof;
+	long bytesRead;
+	long startTime;
+
+	// The most recently read header line, and whether it has been returned by getNextName yet
+	ByteList nameLine;
+	boolean pendingName;
+
+	// The sequence of the most recent read
+	ByteList seq;
+	
+	// The qualities of the most recent read, if it came from a FASTQ file and keepQualities is set
+	ByteList qual;
+	boolean keepQualities;
+
 	int readCount;
 	boolean lastFasta = false;
 	boolean lastFastq = false;
 	ReadReader(String fn) throws IOException
+	{
+		this(open(fn));
+	}
+	ReadReader(ReadableByteChannel channel)
 	{
 		readCount = 0;
-		input = new Scanner(new FileInputStream(new File(fn)));
+		this.channel = channel;
+		buf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		buf.limit(0);
+		eof = false;
+		bytesRead = 0;
+		nameLine = new ByteList();
+		seq = new ByteList();
+		qual = new ByteList();
+		keepQualities = false;
+		pendingName = false;
+		startTime = System.currentTimeMillis();
+	}
+	
+	/*
+	 * Opens a file as a channel of uncompressed bytes, based on the magic bytes at its start
+	 */
+	static ReadableByteChannel open(String fn) throws IOException
+	{
+		Path path = Paths.get(fn);
+		FileChannel fc = FileChannel.open(path, StandardOpenOption.READ);
+		ByteBuffer start = ByteBuffer.allocate(BgzfChannel.HEADER_SIZE);
+		while(start.hasRemaining() && fc.read(start) >= 0);
+		byte[] magic = start.array();
+		if(BgzfChannel.isBgzf(magic, start.position()))
+		{
+			fc.close();
+			return new BgzfChannel(path, decompressionThreads);
+		}
+		else if(BgzfChannel.isGzip(magic, start.position()))
+		{
+			fc.close();
+			return Channels.newChannel(new GZIPInputStream(Files.newInputStream(path), 1 << 16));
+		}
+		fc.position(0);
+		return fc;
 	}
 	String getNextName()
 	{
 		lastFastq = false;
 		lastFasta = false;
-		while(input.hasNext() && !validNameLine(last))
-		{
-			last = input.nextLine();
-		}
-		if(validNameLine(last))
+		if(!pendingName)
 		{
-			String res = last;
-			last = null;
-			if(res.charAt(0) == '@')
+			boolean found = false;
+			while(!found)
 			{
-				lastFastq = true;
-			}
-			else if(res.charAt(0) == '>')
-			{
-				lastFasta = true;
+				nameLine.size = 0;
+				if(!readLine(nameLine))
+				{
+					return null;
+				}
+				found = validNameLine(nameLine);
 			}
-			
-			return res.substring(1);
+		}
+		pendingName = false;
+		if(nameLine.a[0] == '@')
+		{
+			lastFastq = true;
 		}
 		else
 		{
-			return null;
+			lastFasta = true;
 		}
+		return new String(nameLine.a, 1, nameLine.size - 1, StandardCharsets.UTF_8);
 	}
 	String getNextRead()
+	{
+		if(readNextSequence() < 0)
+		{
+			return null;
+		}
+		return sequenceString();
+	}
+	
+	/*
+	 * The sequence most recently read by readNextSequence
+	 */
+	String sequenceString()
+	{
+		return new String(seq.a, 0, seq.size, StandardCharsets.ISO_8859_1);
+	}
+
+	/*
+	 * The qualities of the read most recently read by readNextSequence, or null if it has none
+	 */
+	String qualityString()
+	{
+		if(!keepQualities || !lastFastq)
+		{
+			return null;
+		}
+		return new String(qual.a, 0, qual.size, StandardCharsets.ISO_8859_1);
+	}
+	
+	/*
+	 * Whether a file holds FASTQ records, based on its first record
+	 */
+	static boolean isFastq(String fn) throws IOException
+	{
+		ReadReader rr = new ReadReader(fn);
+		try
+		{
+			return rr.hasNext() && rr.getNextName() != null && rr.lastFastq;
+		}
+		finally
+		{
+			rr.channel.close();
+		}
+	}
+	
+	/*
+	 * Reads the sequence of the current record into seq without building a String
+	 * Returns its length, or -1 if there was no header before it
+	 */
+	int readNextSequence()
+	{
+		long start = System.nanoTime();
+		int length = readSequence();
+		if(length >= 0)
+		{
+			Metrics.readsParsed.increment();
+			Metrics.basesParsed.add(length);
+		}
+		Metrics.parseNanos.add(System.nanoTime() - start);
+		return length;
+	}
+	
+	int readSequence()
 	{
 		readCount++;
+		seq.size = 0;
+		qual.size = 0;
 		if(lastFastq)
 		{
-			String res = input.nextLine();
-			input.nextLine();
-			input.nextLine();
-			return res;
+			readLine(seq);
+			skipLine();
+			if(keepQualities)
+			{
+				readLine(qual);
+			}
+			else
+			{
+				skipLine();
+			}
+			return seq.size;
 		}
 		else if(lastFasta)
 		{
-			StringBuilder res = new StringBuilder("");
-			while(input.hasNext())
+			while(hasNext())
 			{
-				String s = input.nextLine();
-				if(validNameLine(s))
+				int next = peek();
+				if(next == '>' || next == '@')
 				{
-					last = s;
+					nameLine.size = 0;
+					readLine(nameLine);
+					pendingName = true;
 					break;
 				}
 				else
 				{
-					res.append(s);
+					readLine(seq);
 				}
 			}
-			return res.toString();
+			return seq.size;
 		}
 		else
 		{
-			return null;
+			return -1;
 		}
 	}
-	boolean validNameLine(String s)
+	boolean validNameLine(ByteList line)
 	{
-		if(s == null || s.length() == 0) return false;
-		if(s.charAt(0) == '>' || s.charAt(0) == '@') return true;
+		if(line.size == 0) return false;
+		if(line.a[0] == '>' || line.a[0] == '@') return true;
 		return false;
 	}
+
+	/*
+	 * Whether there is any non-whitespace input left
+	 */
 	boolean hasNext()
 	{
-		return last != null || input.hasNext();
+		if(pendingName)
+		{
+			return true;
+		}
+		while(fill())
+		{
+			int pos = buf.position(), lim = buf.limit();
+			while(pos < lim && isWhitespace(buf.get(pos))) pos++;
+			buf.position(pos);
+			if(pos < lim)
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+	static boolean isWhitespace(byte b)
+	{
+		return b == '\n' || b == '\r' || b == ' ' || b == '\t';
 	}
-	
+
+	/*
+	 * The next byte of input without consuming it, or -1 at the end of the input
+	 */
+	int peek()
+	{
+		return fill() ? buf.get(buf.position()) : -1;
+	}
+
+	/*
+	 * Appends the next line (without its line terminator) to dst
+	 * Returns false if the input was already exhausted
+	 */
+	boolean readLine(ByteList dst)
+	{
+		if(!fill())
+		{
+			return false;
+		}
+		while(true)
+		{
+			int pos = buf.position(), lim = buf.limit();
+			int end = pos;
+			while(end < lim && buf.get(end) != '\n') end++;
+			dst.ensureCapacity(dst.size + end - pos);
+			buf.get(dst.a, dst.size, end - pos);
+			dst.size += end - pos;
+			if(end < lim)
+			{
+				buf.position(end + 1);
+				break;
+			}
+			if(!fill())
+			{
+				break;
+			}
+		}
+		if(dst.size > 0 && dst.a[dst.size-1] == '\r')
+		{
+			dst.size--;
+		}
+		return true;
+	}
+
+	/*
+	 * Consumes the next line without copying it anywhere
+	 */
+	void skipLine()
+	{
+		while(fill())
+		{
+			int pos = buf.position(), lim = buf.limit();
+			while(pos < lim && buf.get(pos) != '\n') pos++;
+			if(pos < lim)
+			{
+				buf.position(pos + 1);
+				return;
+			}
+			buf.position(lim);
+		}
+	}
+
+	/*
+	 * Makes sure there is unconsumed data in the buffer, reading more from the channel if needed
+	 * Returns false at the end of the input
+	 */
+	boolean fill()
+	{
+		if(buf.hasRemaining())
+		{
+			return true;
+		}
+		if(eof)
+		{
+			return false;
+		}
+		buf.clear();
+		try
+		{
+			int read = 0;
+			while(read == 0)
+			{
+				read = channel.read(buf);
+			}
+			if(read < 0)
+			{
+				eof = true;
+				channel.close();
+			}
+			else
+			{
+				bytesRead += read;
+			}
+		}
+		catch(IOException e)
+		{
+			throw new UncheckedIOException(e);
+		}
+		buf.flip();
+		return buf.hasRemaining();
+	}
+
+	/*
+	 * The amount of input parsed so far and how fast it was parsed
+	 */
+	String throughput()
+	{
+		double seconds = Math.max(1, System.currentTimeMillis() - startTime) / 1000.0;
+		double megabytes = bytesRead / 1e6;
+		return String.format("Parsed %.1f MB at %.1f MB/s", megabytes, megabytes / seconds);
+	}
+
 	Read[] getAllReads()
 	{
 		ArrayList<Read> list = new ArrayList<Read>();
@@ -0,0 +1,177 @@
+/*
+ * Generates synthetic long reads from a random genome, for benchmarks and testing
+ * Read lengths follow a log-normal distribution clamped to a range, each read comes from either strand,
+ * and errors are substitutions, insertions and deletions in the ratio 2:1:1
+ * The output depends only on the parameters and the seed
+ *
+ * Usage: java hydroplane.ReadSimulator [n=2000] [genome=5000000] [mu=9.6] [sigma=0.6] [minlength=1000]
+ *            [maxlength=100000] [error=0.06] [seed=1] [format=fq] [ofn=<file, or standard output if not given>]
+ */
+
+package hydroplane;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Random;
+
+public class ReadSimulator {
+	static final char[] BASES = {'A', 'C', 'G', 'T'};
+
+	// The mean and standard deviation of the log of the read lengths
+	double mu = 9.6;
+	double sigma = 0.6;
+	int minLength = 1000;
+	int maxLength = 100000;
+
+	// The proportion of bases of each read which have an error
+	double errorRate = 0.06;
+
+	int genomeLength = 5000000;
+	long seed = 1;
+
+	Random rand;
+	char[] genome;
+
+	ReadSimulator()
+	{
+	}
+
+	/*
+	 * Sets the parameters from arguments of the form name=value, ignoring any others
+	 */
+	ReadSimulator(String[] args)
+	{
+		for(String s : args)
+		{
+			int idx = s.indexOf('=');
+			if(idx == -1) continue;
+			String argName = s.substring(0, idx).toLowerCase();
+			String val = s.substring(idx+1);
+			if(argName.equals("genome")) genomeLength = Integer.parseInt(val);
+			else if(argName.equals("mu")) mu = Double.parseDouble(val);
+			else if(argName.equals("sigma")) sigma = Double.parseDouble(val);
+			else if(argName.equals("minlength")) minLength = Integer.parseInt(val);
+			else if(argName.equals("maxlength")) maxLength = Integer.parseInt(val);
+			else if(argName.equals("error")) errorRate = Double.parseDouble(val);
+			else if(argName.equals("seed")) seed = Long.parseLong(val);
+		}
+	}
+
+	/*
+	 * Generates the genome - must be called before any reads are generated
+	 */
+	void init()
+	{
+		rand = new Random(seed);
+		genome = new char[genomeLength];
+		for(int i = 0; i<genomeLength; i++) genome[i] = BASES[rand.nextInt(4)];
+	}
+
+	Read[] reads(int n)
+	{
+		Read[] res = new Read[n];
+		for(int i = 0; i<n; i++) res[i] = nextRead(i);
+		return res;
+	}
+
+	Read nextRead(int index)
+	{
+		int length = (int)Math.exp(mu + sigma * rand.nextGaussian());
+		length = Math.max(minLength, Math.min(Math.min(maxLength, genomeLength), length));
+		int start = rand.nextInt(genomeLength - length + 1);
+		char[] s = new char[length];
+		boolean reverse = rand.nextBoolean();
+		for(int i = 0; i<length; i++)
+		{
+			s[i] = reverse ? complement(genome[start + length - 1 - i]) : genome[start + i];
+		}
+		return new Read("read" + index + " pos=" + start + " strand=" + (reverse ? '-' : '+'), mutate(s), index);
+	}
+
+	String mutate(char[] s)
+	{
+		StringBuilder sb = new StringBuilder(s.length + s.length / 16);
+		for(char c : s)
+		{
+			double r = rand.nextDouble();
+			if(r >= errorRate) sb.append(c);
+			else if(r < errorRate * 0.5) sb.append(BASES[rand.nextInt(4)]);
+			else if(r < errorRate * 0.75) sb.append(c).append(BASES[rand.nextInt(4)]);
+		}
+		return sb.toString();
+	}
+
+	static char complement(char c)
+	{
+		switch(c)
+		{
+			case 'A': return 'T';
+			case 'C': return 'G';
+			case 'G': return 'C';
+			default: return 'A';
+		}
+	}
+
+	/*
+	 * Writes reads in FASTQ format, or in FASTA format with 80 bases per line if fastq is false
+	 */
+	static void write(Read[] reads, OutputStream os, boolean fastq)
+	{
+		PrintWriter out = new PrintWriter(new BufferedOutputStream(os, 1 << 16));
+		for(Read r : reads)
+		{
+			if(fastq)
+			{
+				out.println("@" + r.n);
+				out.println(r.s);
+				out.println("+");
+				char[] quality = new char[r.s.length()];
+				Arrays.fill(quality, 'I');
+				out.println(quality);
+			}
+			else
+			{
+				out.println(">" + r.n);
+				for(int i = 0; i<r.s.length(); i += 80)
+				{
+					out.println(r.s.substring(i, Math.min(r.s.length(), i + 80)));
+				}
+			}
+		}
+		out.flush();
+	}
+
+	public static void main(String[] args) throws IOException
+	{
+		int n = 2000;
+		boolean fastq = true;
+		String ofn = null;
+		for(String s : args)
+		{
+			int idx = s.indexOf('=');
+			if(idx == -1) continue;
+			String argName = s.substring(0, idx).toLowerCase();
+			String val = s.substring(idx+1);
+			if(argName.equals("n")) n = Integer.parseInt(val);
+			else if(argName.equals("format")) fastq = !val.equalsIgnoreCase("fa") && !val.equalsIgnoreCase("fasta");
+			else if(argName.equals("ofn")) ofn = val;
+		}
+		ReadSimulator sim = new ReadSimulator(args);
+		sim.init();
+		Read[] reads = sim.reads(n);
+		if(ofn == null)
+		{
+			write(reads, System.out, fastq);
+		}
+		else
+		{
+			OutputStream os = new FileOutputStream(ofn);
+			write(reads, os, fastq);
+			os.close();
+		}
+	}
+}
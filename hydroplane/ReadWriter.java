@@ -0,0 +1,198 @@
+/*
+ * The output stage for the reads which are kept, written while reads are still being checked
+ * Workers hand over the kept reads of each batch along with the batch's sequence number, in whatever order
+ * they finish, and a writer thread writes the batches out in sequence order
+ * A worker whose batch is more than about MAX_AHEAD_READS reads ahead of the writer waits, so the reads held
+ * here stay bounded however many reads each batch covers
+ *
+ * Reads are written in FASTQ format, qualities included, or in FASTA format, and the output is compressed
+ * as BGZF on several threads if the file name ends in .gz or .bgz
+ */
+
+package hydroplane;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+
+public class ReadWriter {
+	static final int MAX_AHEAD_READS = 16384;
+
+	OutputStream out;
+	boolean fastq;
+
+	// Batches which have been handed over but not yet written, by sequence number
+	HashMap<Integer, Read[]> waiting;
+	int nextBatch;
+	int numBatches;
+	
+	// How many batches a worker may be ahead of the writer, from how many reads each batch covers
+	int maxAhead;
+
+	WriterThread writer;
+	IOException error;
+
+	long keptReads, keptBases;
+
+	ReadWriter(String ofn, boolean fastq, int compressionThreads, int readsPerBatch) throws IOException
+	{
+		this.fastq = fastq;
+		maxAhead = Math.max(1, MAX_AHEAD_READS / Math.max(1, readsPerBatch));
+		if(compressed(ofn))
+		{
+			out = new BgzfOutputStream(new FileOutputStream(ofn), compressionThreads);
+		}
+		else
+		{
+			out = new BufferedOutputStream(new FileOutputStream(ofn), 1 << 16);
+		}
+		waiting = new HashMap<>();
+		nextBatch = 0;
+		numBatches = -1;
+		writer = new WriterThread();
+		writer.start();
+	}
+
+	static boolean compressed(String ofn)
+	{
+		return ofn.endsWith(".gz") || ofn.endsWith(".bgz");
+	}
+
+	/*
+	 * Whether the output is FASTQ: as requested by outformat, or otherwise the same format as the input
+	 */
+	static boolean fastqOutput(CommandLineParser clp) throws IOException
+	{
+		if(clp.outputFormat != null)
+		{
+			return clp.outputFormat.equalsIgnoreCase("fastq") || clp.outputFormat.equalsIgnoreCase("fq");
+		}
+		return ReadReader.isFastq(clp.fn);
+	}
+
+	/*
+	 * Hands over the kept reads of a batch - every sequence number must be handed over exactly once
+	 */
+	synchronized void put(int batch, Read[] kept) throws InterruptedException
+	{
+		while(batch > nextBatch + maxAhead && error == null)
+		{
+			wait();
+		}
+		waiting.put(batch, kept);
+		notifyAll();
+	}
+
+	/*
+	 * Waits for the first numBatches batches to be written and closes the file
+	 */
+	void close(int numBatches) throws IOException, InterruptedException
+	{
+		synchronized(this)
+		{
+			this.numBatches = numBatches;
+			notifyAll();
+		}
+		writer.join();
+		if(error != null)
+		{
+			throw error;
+		}
+	}
+
+	/*
+	 * The next batch in order, or null once all of them have been written
+	 */
+	synchronized Read[] take() throws InterruptedException
+	{
+		while(true)
+		{
+			if(numBatches != -1 && nextBatch >= numBatches)
+			{
+				return null;
+			}
+			Read[] res = waiting.remove(nextBatch);
+			if(res != null)
+			{
+				nextBatch++;
+				notifyAll();
+				return res;
+			}
+			wait();
+		}
+	}
+
+	void write(Read r) throws IOException
+	{
+		out.write(fastq ? '@' : '>');
+		out.write(r.n.getBytes(StandardCharsets.UTF_8));
+		out.write('\n');
+		out.write(r.s.getBytes(StandardCharsets.ISO_8859_1));
+		out.write('\n');
+		if(fastq)
+		{
+			out.write('+');
+			out.write('\n');
+			if(r.q != null)
+			{
+				out.write(r.q.getBytes(StandardCharsets.ISO_8859_1));
+			}
+			else
+			{
+				// A read from a FASTA file has no qualities, so give every base the same one
+				for(int i = 0; i<r.s.length(); i++) out.write('I');
+			}
+			out.write('\n');
+		}
+		keptReads++;
+		keptBases += r.s.length();
+	}
+
+	/*
+	 * Records an error in writing, and wakes any workers waiting for the writer so they do not wait forever
+	 */
+	synchronized void fail(IOException e)
+	{
+		error = e;
+		notifyAll();
+	}
+
+	/*
+	 * Prints how much of the input was kept
+	 */
+	void printSummary(long numReads, long totalBases)
+	{
+		System.err.printf("Kept %d out of %d reads (%.2f%%)\n", keptReads, numReads, 100.0 * keptReads / numReads);
+		System.err.printf("Kept %d out of %d bases (%.2f%%)\n", keptBases, totalBases, 100.0 * keptBases / totalBases);
+	}
+
+	class WriterThread extends Thread
+	{
+		public void run()
+		{
+			try
+			{
+				Read[] batch;
+				while((batch = take()) != null)
+				{
+					for(Read r : batch)
+					{
+						write(r);
+					}
+				}
+				out.close();
+			}
+			catch(IOException e)
+			{
+				fail(e);
+			}
+			catch(InterruptedException e)
+			{
+				fail(new IOException(e));
+			}
+		}
+	}
+}
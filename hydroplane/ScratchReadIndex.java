@@ -9,7 +9,6 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.Scanner;
 import java.util.TreeMap;
@@ -24,7 +23,7 @@ public class ScratchReadIndex extends ReadIndex {
 		HashMap<String, Integer> nameToIndex = new HashMap<>();
 		for(int i = 0; i<n; i++)
 		{
-			nameToIndex.put(data[i].n, i);
+			nameToIndex.put(longReadNames.get(i), i);
 		}
 		map = new HashMap<>();
 		@SuppressWarnings("resource")
@@ -63,17 +62,17 @@ public class ScratchReadIndex extends ReadIndex {
 		}
 		
 		// Kmerize the query read
-		long[] kmers = MerMaker.minimizers(r.s, k, w, clp.posStrandBits);
-		int numMinimizers = kmers.length;
+		MerMaker.MinimizerEngine minimizers = MerMaker.engine();
+		int numMinimizers = minimizers.compute(r.s, k, w, clp.posStrandBits);
 		
 		// Get all kmer matches against any database reads
-		HashMap<Integer, ArrayList<Hit>> hits = getHits(r, kmers);
+		HitBuffer hits = getHits(r, minimizers.out, numMinimizers);
 		
 		// Initialize logging information
-		le.numCandidates = hits.keySet().size();
+		le.numCandidates = hits.numRuns;
 		le.readName = r.n;
 		le.readLength = r.s.length();
-		le.numMinimizers = kmers.length;
+		le.numMinimizers = numMinimizers;
 		le.longestChain = -1;
 		le.leftEnd = -le.readLength;
 		le.rightEnd = -le.readLength;
@@ -85,7 +84,8 @@ public class ScratchReadIndex extends ReadIndex {
 		
 		int bestKey = -1;
 		
-		TreeMap<Integer, ArrayList<Integer>> scoreToKey = new TreeMap<>();
+		TreeMap<Integer, ArrayList<Integer>> scoreToRun = new TreeMap<>();
+		int[][] chains = new int[hits.numRuns][];
 		
 		int allowedIndex = -1;
 		
@@ -97,8 +97,10 @@ public class ScratchReadIndex extends ReadIndex {
 		int count = 0;
 		int att = 0;
 		
-		for(int readKey : hits.keySet())
+		for(int run = 0; run<hits.numRuns; run++)
 		{
+			int readKey = hits.runKey[run];
+			
 			// Get the read index and strand
 			int readIndex = readKey / 2;
 			int theirStrand = readKey % 2;
@@ -109,40 +111,32 @@ public class ScratchReadIndex extends ReadIndex {
 			}
 			att++;
 			
-			ArrayList<Hit> sharedKmers = hits.get(readKey);
-			
 			// If there are too few hits to possibly form a long enough chain, ignore
-			if(sharedKmers.size() < threshold * numMinimizers)
+			if(hits.length(run) < threshold * numMinimizers)
 			{
 				count++;
 				continue;
 			}
 			
 			// If the database read is too short to possibly contain the query, ignore
-			if(readLength >= data[readIndex].s.length())
+			if(readLength >= sequences.length(readIndex))
 			{
 				continue;
 			}
 			
-			// Sort matches by their position in query read
-			Collections.sort(sharedKmers);
-			if(theirStrand != 0)
-			{
-				Collections.reverse(sharedKmers);
-			}
-			
 			// Get matches which form longest subsequence of increasing positions in database read
-			int[] matchChain = lis(r.s.length(), sharedKmers, theirStrand == 0, threshold);
+			int[] matchChain = lis(r.s.length(), hits, hits.start(run), hits.end(run), theirStrand == 0, threshold);
+			chains[run] = matchChain;
 			
 			// Store how close this chain gets to end of query - 
 			//   to be used when selecting which alignments to investigate further
-			int[] endLengths = getUnalignedEnds(sharedKmers, matchChain, r.s.length());
+			int[] endLengths = getUnalignedEnds(hits, matchChain, r.s.length());
 			int maxEnd = Math.max(endLengths[0], endLengths[1]);
-			if(!scoreToKey.containsKey(maxEnd))
+			if(!scoreToRun.containsKey(maxEnd))
 			{
-				scoreToKey.put(maxEnd, new ArrayList<>());
+				scoreToRun.put(maxEnd, new ArrayList<>());
 			}
-			scoreToKey.get(maxEnd).add(readKey);
+			scoreToRun.get(maxEnd).add(run);
 			
 			int oldMax = Math.max(le.leftEnd, le.rightEnd);
 			if(oldMax < 0) oldMax = le.readLength + 1;
@@ -159,15 +153,15 @@ public class ScratchReadIndex extends ReadIndex {
 				le.containingName = longReadNames.get(readKey/2);
 				for(int i = 0; i<le.chain.length; i++)
 				{
-					le.chain[i] = sharedKmers.get(matchChain[i]).myIndex;
-					le.theirChain[i] = sharedKmers.get(matchChain[i]).rp.p;
+					le.chain[i] = hits.myPos(matchChain[i]);
+					le.theirChain[i] = hits.theirPos[matchChain[i]];
 				}
 			}
 			
 			// Check if the chain length/proximity to ends is good enough to call this contained
 			// Don't do this if querying a database read since we want to be more careful about removing longer reads
 			boolean chainContaining = r.s.length() < lengthThreshold &&
-					chainContaining(sharedKmers, matchChain, numMinimizers, r.s.length(), threshold, endLength);
+					chainContaining(hits, matchChain, numMinimizers, r.s.length(), threshold, endLength);
 			
 			// If it is contained, return true (or mark and keep going if logging results)
 			if(chainContaining)
@@ -194,8 +188,8 @@ public class ScratchReadIndex extends ReadIndex {
 						le.containingName = longReadNames.get(readKey/2);
 						for(int i = 0; i<le.chain.length; i++)
 						{
-							le.chain[i] = sharedKmers.get(matchChain[i]).myIndex;
-							le.theirChain[i] = sharedKmers.get(matchChain[i]).rp.p;
+							le.chain[i] = hits.myPos(matchChain[i]);
+							le.theirChain[i] = hits.theirPos[matchChain[i]];
 						}
 						le.contained = true;
 					}
@@ -217,19 +211,18 @@ public class ScratchReadIndex extends ReadIndex {
 		if(bestKey != -1 && (logger == null || !le.contained))
 		{
 			boolean found = false;
-			while(!found && attempts < clp.maxAttempts && (last == -1 || scoreToKey.higherKey(last) != null))
+			while(!found && attempts < clp.maxAttempts && (last == -1 || scoreToRun.higherKey(last) != null))
 			{
-				int curScore = last == -1 ? scoreToKey.firstKey() : scoreToKey.higherKey(last);
+				int curScore = last == -1 ? scoreToRun.firstKey() : scoreToRun.higherKey(last);
 				last = curScore;
-				ArrayList<Integer> keys = scoreToKey.get(curScore);
-				for(int i = 0; i<keys.size() && attempts < clp.maxAttempts && !found; i++, attempts++)
+				ArrayList<Integer> runs = scoreToRun.get(curScore);
+				for(int i = 0; i<runs.size() && attempts < clp.maxAttempts && !found; i++, attempts++)
 				{
-					int curKey = keys.get(i);
-					ArrayList<Hit> sharedKmers = hits.get(curKey);
-					int theirStrand = curKey % 2;
-					le.dpNames.add(data[curKey/2].n);
-					int[] matchChain = lis(r.s.length(), sharedKmers, theirStrand == 0, threshold);
-					int[] endLengths = getUnalignedEnds(sharedKmers, matchChain, r.s.length());
+					int run = runs.get(i);
+					int curKey = hits.runKey[run];
+					le.dpNames.add(longReadNames.get(curKey/2));
+					int[] matchChain = chains[run];
+					int[] endLengths = getUnalignedEnds(hits, matchChain, r.s.length());
 					
 					// If this is a database read, add extra end length criteria
 					if(r.s.length() >= lengthThreshold && endLength * 5 < Math.max(endLengths[0], endLengths[1]))
@@ -238,7 +231,7 @@ public class ScratchReadIndex extends ReadIndex {
 					}
 					
 					// Get alignment score and return true if high enough
-					double score = dpa.dpContains(data[sharedKmers.get(0).rp.rs/2], k, r, sharedKmers, matchChain, 
+					double score = dpa.dpContains(sequences, curKey/2, k, r, hits, matchChain, 
 							matchChain.length < threshold * numMinimizers || r.s.length() >= lengthThreshold);
 					le.ctScore = Math.max(le.ctScore, score);
 					if(score > clp.dpCutoff)
@@ -256,7 +249,7 @@ public class ScratchReadIndex extends ReadIndex {
 		}
 		if(logger != null)
 		{
-			logger.data.add(le);
+			logger.add(le);
 			return le.contained;
 		}
 		return false;
@@ -0,0 +1,149 @@
+/*
+ * Combines the output of several processes which each checked one shard of the query reads (shard=i/N)
+ * into the output a single process would have produced
+ * Each process leaves the names of its uncontained reads in its urf file, their indices in the input file
+ * next to it in urf.ids, and its counts of how many reads each indexed read contains in urf.counts
+ * Reads are matched by index rather than name, since names need not be unique, and a read which more than
+ * one shard reports is an error
+ *
+ * Usage: java hydroplane.ShardMerger fn=<reads> ofn=<output reads> urf=<output names> parts=<names file>,<names file>,...
+ */
+
+package hydroplane;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Scanner;
+
+public class ShardMerger {
+	public static void main(String[] args) throws IOException, InterruptedException
+	{
+		CommandLineParser clp = new CommandLineParser(args);
+		String[] parts = null;
+		for(String s : args)
+		{
+			if(s.toLowerCase().startsWith("parts="))
+			{
+				parts = s.substring(6).split(",");
+			}
+		}
+		if(parts == null)
+		{
+			System.err.println("Usage: java hydroplane.ShardMerger fn=<reads> ofn=<output reads> urf=<output names> parts=<names file>,...");
+			return;
+		}
+
+		HashSet<Integer> uncontained = new HashSet<>();
+		int[] countContaining = null;
+		for(String part : parts)
+		{
+			for(int id : readInts(part + ".ids"))
+			{
+				if(!uncontained.add(id))
+				{
+					throw new IllegalArgumentException("Read " + id + " is reported by more than one shard, including " + part);
+				}
+			}
+			int[] counts = readInts(part + ".counts");
+			if(countContaining == null)
+			{
+				countContaining = counts;
+			}
+			else if(counts.length != countContaining.length)
+			{
+				throw new IllegalArgumentException("Shard " + part + " has counts for " + counts.length
+						+ " indexed reads but the others have " + countContaining.length);
+			}
+			else
+			{
+				for(int i = 0; i<counts.length; i++) countContaining[i] += counts[i];
+			}
+		}
+
+		// Mark the reads no shard reported as contained, writing the names in file order
+		ArrayList<Boolean> containedList = new ArrayList<>();
+		PrintWriter names = new PrintWriter(new File(clp.uncontainedReadFile));
+		ReadReader rr = new ReadReader(clp.fn);
+		while(rr.hasNext())
+		{
+			String name = rr.getNextName().split(" ")[0];
+			if(rr.readNextSequence() < 0)
+			{
+				break;
+			}
+			boolean contained = !uncontained.contains(containedList.size());
+			containedList.add(contained);
+			if(!contained)
+			{
+				names.println(name);
+			}
+		}
+		names.close();
+		for(int id : uncontained)
+		{
+			if(id >= containedList.size())
+			{
+				throw new IllegalArgumentException("A shard reports read " + id + " but " + clp.fn + " has only "
+						+ containedList.size() + " reads");
+			}
+		}
+		boolean[] contained = new boolean[containedList.size()];
+		for(int i = 0; i<contained.length; i++) contained[i] = containedList.get(i);
+
+		ReadLengthSeparator.printUncontainedReads(clp.fn, contained, clp.ofn, ReadWriter.fastqOutput(clp), clp.nt);
+		writeCounts(clp.uncontainedReadFile + ".counts", countContaining);
+		System.err.println(Arrays.toString(countContaining));
+		int sum = 0;
+		for(int cc : countContaining) sum += cc;
+		System.err.println("Number removed from alignment chains: " + sum);
+	}
+
+	static ArrayList<String> readLines(String fn) throws IOException
+	{
+		ArrayList<String> res = new ArrayList<>();
+		Scanner input = new Scanner(new FileInputStream(new File(fn)));
+		while(input.hasNextLine())
+		{
+			String line = input.nextLine();
+			if(line.length() > 0) res.add(line);
+		}
+		input.close();
+		return res;
+	}
+
+	static int[] readInts(String fn) throws IOException
+	{
+		ArrayList<String> lines = readLines(fn);
+		int[] res = new int[lines.size()];
+		for(int i = 0; i<res.length; i++) res[i] = Integer.parseInt(lines.get(i));
+		return res;
+	}
+
+	/*
+	 * Writes the indices of the reads in this process's query shard which are not contained, one per line
+	 */
+	static void writeIds(String fn, boolean[] contained, CommandLineParser clp) throws IOException
+	{
+		PrintWriter out = new PrintWriter(new File(fn));
+		for(int i = 0; i<contained.length; i++)
+		{
+			if(!contained[i] && clp.inQueryShard(i)) out.println(i);
+		}
+		out.close();
+	}
+
+	/*
+	 * Writes how many reads each indexed read contains, one per line
+	 */
+	static void writeCounts(String fn, int[] countContaining) throws IOException
+	{
+		PrintWriter out = new PrintWriter(new File(fn));
+		for(int cc : countContaining) out.println(cc);
+		out.close();
+	}
+}
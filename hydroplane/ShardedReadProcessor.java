@@ -0,0 +1,134 @@
+/*
+ * Checks reads for containment when the long reads are too big to index all at once
+ * The long reads are split into shards in file order, each small enough to index within a memory budget,
+ * and every read is checked against one shard at a time
+ * A read is contained if any shard contains it, so reads found to be contained are skipped by later shards
+ *
+ * Since the thresholds are learned from how well the sample matches the whole index, learning makes
+ * an extra pass over the shards first, taking for each read of the sample the best it does in any shard
+ */
+
+package hydroplane;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+public class ShardedReadProcessor {
+
+	// A rough bound on the heap used per indexed base while a shard is built: the sequence itself
+	// and its packed copy, plus about 4 longs per minimizer across the minimizer, sorting and index arrays
+	static double bytesPerBase(int w)
+	{
+		return 1.25 + 4 * 8 * 2.0 / (w + 1);
+	}
+
+	ReadLengthSeparator re;
+	CommandLineParser clp;
+	Timer timer;
+
+	// The most bases of long reads in each shard
+	long shardBases;
+
+	boolean[] contained;
+
+	// The number of reads each long read contains, over all shards in file order
+	int[] countContaining;
+
+	int numShards;
+
+	ShardedReadProcessor(ReadLengthSeparator re, CommandLineParser clp, Timer timer)
+	{
+		this.re = re;
+		this.clp = clp;
+		this.timer = timer;
+		shardBases = Math.max(1, (long)(clp.shardMemory * (1L << 20) / bytesPerBase(clp.w)));
+		contained = new boolean[re.n];
+		countContaining = new int[0];
+		System.err.println("Indexing long reads in shards of at most " + shardBases + " bases");
+	}
+
+	void run() throws IOException, InterruptedException
+	{
+		if(clp.learn && re.sample != null)
+		{
+			learn();
+		}
+
+		Read[] shard;
+		while((shard = re.nextLongReads(shardBases)).length > 0)
+		{
+			numShards++;
+			System.err.println("Checking reads against shard " + numShards + " with " + shard.length + " long reads");
+			re.data = shard;
+			ReadIndex index = new ReadIndex(re, clp);
+			ConcurrentReadProcessor crp = new ConcurrentReadProcessor(re, index, clp, clp.nt, timer, contained, null);
+			crp.runAll();
+			int start = countContaining.length;
+			countContaining = Arrays.copyOf(countContaining, start + index.n);
+			System.arraycopy(index.countContaining, 0, countContaining, start, index.n);
+			System.err.println("After shard " + numShards + ": " + countContained() + " contained " + timer.time());
+		}
+		writeUncontainedNames(clp.uncontainedReadFile);
+	}
+
+	/*
+	 * Learns the thresholds from the best chain each sample read has against any shard
+	 */
+	void learn() throws IOException
+	{
+		System.err.println("Using sample to learn threshold");
+		double[][] best = null;
+		Read[] shard;
+		while((shard = re.nextLongReads(shardBases)).length > 0)
+		{
+			re.data = shard;
+			ReadIndex index = new ReadIndex(re, clp);
+			double[][] info = new double[re.sample.length][];
+			index.getParamInfo(re.sample, 0, info.length, info, clp.nt);
+			if(best == null)
+			{
+				best = info;
+			}
+			for(int i = 0; i<info.length; i++)
+			{
+				best[i][0] = Math.max(best[i][0], info[i][0]);
+			}
+		}
+		re.resetLongReads();
+		if(best == null)
+		{
+			return;
+		}
+		ParameterLearner pl = new ParameterLearner(best, clp.k, clp.propUncontained);
+		clp.p = pl.sharedCutoff;
+		clp.dpCutoff = pl.dpCutoff;
+		System.err.println("Updating proportion cutoff to " + clp.p);
+		System.err.println("Updating dynamic programming cutoff to " + clp.dpCutoff);
+		clp.setEl();
+		System.err.println("Updating end length to " + clp.el);
+	}
+
+	int countContained()
+	{
+		int res = 0;
+		for(boolean c : contained) if(c) res++;
+		return res;
+	}
+
+	void writeUncontainedNames(String fn) throws IOException
+	{
+		PrintWriter out = new PrintWriter(new File(fn));
+		re.rr = new ReadReader(re.fn);
+		Read r;
+		while((r = re.getNextRead()) != null)
+		{
+			if(!contained[r.i] && clp.inQueryShard(r.i))
+			{
+				out.println(r.n.split(" ")[0]);
+			}
+		}
+		out.close();
+	}
+}
@@ -8,15 +8,51 @@ public static void main(String[] args) throws IOException, InterruptedException
 {
 	Timer timer = new Timer(Timer.Unit.SECOND);
 	CommandLineParser clp = new CommandLineParser(args);
-	ReadLengthSeparator re = new ReadLengthSeparator(clp.fn, clp.indexSize, timer, clp.readSplitScript);
+	if(clp.metricsFile != null)
+	{
+		Metrics.start(clp.metricsFile, clp.metricsJson, clp.metricsInterval);
+	}
+	
+	if(clp.numQueryShards > 1)
+	{
+		System.err.println("Checking query shard " + clp.queryShard + " of " + clp.numQueryShards
+				+ " - combine the output of all shards with ShardMerger");
+		if(clp.indexFile == null && clp.shardMemory == 0)
+		{
+			System.err.println("No index file given, so this process builds its own copy of the index");
+		}
+	}
+	
+	if(clp.shardMemory > 0)
+	{
+		runSharded(clp, timer);
+		return;
+	}
+	
+	// Reuse a saved index if there is one for this input and these parameters
+	IndexFile saved = null;
+	if(clp.indexFile != null && !clp.legacyIndex)
+	{
+		saved = IndexFile.open(clp.indexFile, clp);
+	}
+	// Qualities are only kept if the reads are written out as FASTQ
+	boolean keepQualities = clp.numQueryShards == 1 && ReadWriter.fastqOutput(clp);
+	ReadLengthSeparator re = new ReadLengthSeparator(clp.fn, clp.indexSize, clp.sampleSize,
+			saved == null ? -1 : saved.lengthThreshold, true, keepQualities, timer);
+	if(saved != null && !saved.matches(re.data))
+	{
+		System.err.println("Index file does not match the input reads - rebuilding it");
+		saved = null;
+		re = new ReadLengthSeparator(clp.fn, clp.indexSize, clp.sampleSize, -1, true, keepQualities, timer);
+	}
 	System.err.println(timer.time());
 	ReadIndex index = //new ScratchReadIndex(re, clp, "/home/mkirsche/github/ContainedReadRemoval/sim/simulatedscores.txt");
-			new ReadIndex(re, clp);
+			new ReadIndex(re, clp, saved);
 	
 	if(clp.learn && re.sample != null)
 	{
 		System.err.println("Using sample to learn threshold");
-		ParameterLearner pl = new ParameterLearner(index, re.sample, clp.propUncontained);
+		ParameterLearner pl = new ParameterLearner(index, re.sample, clp.propUncontained, clp.learnTolerance, clp.nt);
 		clp.p = pl.sharedCutoff;
 		clp.dpCutoff = pl.dpCutoff;
 		System.err.println("Updating proportion cutoff to " + clp.p);
@@ -28,12 +64,57 @@ public static void main(String[] args) throws IOException, InterruptedException
 	ConcurrentReadProcessor crp = new ConcurrentReadProcessor(re, index, clp, clp.nt, timer);
 	crp.run();
 	
-	re.printUncontainedReads(crp.contained, clp.ofn);
+	// With several query shards, only the merged output has every read
+	if(clp.numQueryShards > 1)
+	{
+		ShardMerger.writeIds(clp.uncontainedReadFile + ".ids", crp.contained, clp);
+		ShardMerger.writeCounts(clp.uncontainedReadFile + ".counts", index.countContaining);
+	}
 	System.err.println(Arrays.toString(index.countContaining));
 	int sum = 0;
 	for(int cc : index.countContaining) sum += cc;
 	System.err.println("Number removed from alignment chains: " + sum);
-	if(crp.logger != null) crp.logger.print();
+	if(index.filter != null) System.err.println(index.filterStats());
+	if(clp.topCandidates > 0) System.err.println(index.candidateStats());
+	if(crp.logger != null) crp.logger.close();
+	Metrics.stop();
+	System.err.println(timer.time());
+}
+
+/*
+ * Checks reads against one shard of the long reads at a time, for when they are too big to index together
+ */
+static void runSharded(CommandLineParser clp, Timer timer) throws IOException, InterruptedException
+{
+	if(clp.indexFile != null)
+	{
+		System.err.println("Index files are not used when indexing in shards");
+		clp.indexFile = null;
+	}
+	if(clp.logfile != null && clp.logfile.length() > 0)
+	{
+		System.err.println("Log files are not used when indexing in shards");
+		clp.logfile = null;
+	}
+	ReadLengthSeparator re = new ReadLengthSeparator(clp.fn, clp.indexSize, clp.sampleSize, -1, false, timer);
+	ShardedReadProcessor srp = new ShardedReadProcessor(re, clp, timer);
+	srp.run();
+	
+	if(clp.numQueryShards > 1)
+	{
+		ShardMerger.writeIds(clp.uncontainedReadFile + ".ids", srp.contained, clp);
+		ShardMerger.writeCounts(clp.uncontainedReadFile + ".counts", srp.countContaining);
+	}
+	else
+	{
+		re.printUncontainedReads(srp.contained, clp.ofn, ReadWriter.fastqOutput(clp), clp.nt);
+	}
+	System.err.println(Arrays.toString(srp.countContaining));
+	int sum = 0;
+	for(int cc : srp.countContaining) sum += cc;
+	System.err.println("Number removed from alignment chains: " + sum);
+	System.err.println("Used " + srp.numShards + " shards");
+	Metrics.stop();
 	System.err.println(timer.time());
 }
 }
@@ -6,8 +6,9 @@ fi
 readfile=$1
 prop=$2
 
+# gzip -cdf decompresses gzip/BGZF input and passes plain text through unchanged
 filetype='fastq'
-firstchar=`head -c 1 $readfile`
+firstchar=`gzip -cdf $readfile | head -c 1`
 if  [ "$firstchar" = ">" ]
 then
     filetype='fasta'
@@ -15,9 +16,9 @@ fi
 
 if [ "$filetype" = "fastq" ]
 then
-    cat $readfile | awk '{if(NR%4==2) print length($1)}' | sort -n -r | uniq -c > read_length.txt
+    gzip -cdf $readfile | awk '{if(NR%4==2) print length($1)}' | sort -n -r | uniq -c > read_length.txt
 else
-    cat $readfile | awk '{if(NR%2==0) print length($1)}' | sort -n -r | uniq -c > read_length.txt
+    gzip -cdf $readfile | awk '{if(NR%2==0) print length($1)}' | sort -n -r | uniq -c > read_length.txt
 fi
 numreads=`awk '{s+=$1} END {print s}' read_length.txt`
 echo 'NumReads: '$numreads
@@ -47,7 +48,7 @@ shortreadcount=`expr $numreads - $keptreads`
 echo 'LongReadFile: '$lrf
 echo 'ShortReadFile: '$srf
 
-awk -v lc="$length_cutoff" -v srf="$srf" -v lrf="$lrf" -v sf="$samplefile" -v ft="$filetype" -v src="$shortreadcount" -v wantkeep="$3" 'BEGIN {FS = "\t" ; OFS = "\n" ; sampleSize = 0 } 
+gzip -cdf $readfile | awk -v lc="$length_cutoff" -v srf="$srf" -v lrf="$lrf" -v sf="$samplefile" -v ft="$filetype" -v src="$shortreadcount" -v wantkeep="$3" 'BEGIN {FS = "\t" ; OFS = "\n" ; sampleSize = 0 } 
         { \
             header = $0 ; \
             getline seq ; \
@@ -86,4 +87,4 @@ awk -v lc="$length_cutoff" -v srf="$srf" -v lrf="$lrf" -v sf="$samplefile" -v ft
                     } \
                 } \
             } \
-        }' < $readfile
+        }'